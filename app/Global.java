@@ -7,6 +7,7 @@ import play.Logger;
 import play.mvc.Result;
 import play.mvc.Results;
 import play.mvc.Http.RequestHeader;
+import utils.WorkerPools;
 
 /**
  * 
@@ -18,11 +19,15 @@ public class Global extends GlobalSettings {
 	@Override
 	public void onStart(Application app) {
 		Logger.info("Application starting...");
+		// Connect and check the schema now rather than on the first request
+		controllers.Application.getStorage();
 	}
 	
 	@Override
 	public void onStop(Application app) {
 		Logger.info("Application shutdown...");
+		WorkerPools.shutdown();
+		controllers.Application.closeStorage();
 	}
 	
 	@Override
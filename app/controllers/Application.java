@@ -1,97 +1,329 @@
 package controllers;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-
-import javax.imageio.ImageIO;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
 import models.Comment;
-import models.HBaseStorage;
 import models.IStorage;
 import models.Photo;
+import models.PhotoInfo;
+import models.PhotoPage;
+import models.SentimentPipeline;
+import models.SentimentSummary;
+import models.StorageFactory;
+import models.TimelineBucket;
 import play.Logger;
 import play.data.DynamicForm;
 import play.data.Form;
+import play.libs.F;
 import play.mvc.Controller;
 import play.mvc.Http.MultipartFormData;
 import play.mvc.Http.MultipartFormData.FilePart;
 import play.mvc.Result;
+import utils.ImageUpload;
+import utils.Metrics;
+import utils.Settings;
+import utils.WorkerPools;
 
-import org.apache.commons.codec.binary.Base64;
 
 
 
 public class Application extends Controller {
 	
+	/**
+	 * One year, the longest lifetime caches are expected to honour
+	 */
+	private static final int CACHE_MAX_AGE = 60 * 60 * 24 * 365;
+	
+	/**
+	 * Number of photos shown in a page of the gallery
+	 */
+	private static final int PAGE_SIZE = 20;
+	
+	/**
+	 * Uploads whose perceptual hash is within this distance of a stored photo's
+	 * are rejected as duplicates, 0 only rejects identical files
+	 */
+	private static final int NEAR_DUPLICATE_DISTANCE = Settings.getInt("photo.nearDuplicate.maxDistance", 4);
+	
+	/**
+	 * Timers of the upload path and of rendering
+	 */
+	private static final Metrics.Timer UPLOAD_READ = Metrics.timer("upload_step_seconds", "step", "read");
+	private static final Metrics.Timer UPLOAD_DECODE = Metrics.timer("upload_step_seconds", "step", "decode");
+	private static final Metrics.Timer UPLOAD_DERIVE = Metrics.timer("upload_step_seconds", "step", "derive");
+	private static final Metrics.Timer UPLOAD_SIMILAR = Metrics.timer("upload_step_seconds", "step", "similar");
+	private static final Metrics.Timer RENDER_INDEX = Metrics.timer("render_seconds", "template", "index");
+	private static final Metrics.Timer RENDER_VIEW_PHOTO = Metrics.timer("render_seconds", "template", "viewPhoto");
+	private static final Metrics.Timer RENDER_SEARCH = Metrics.timer("render_seconds", "template", "search");
+	private static final Metrics.Timer RENDER_TIMELINE = Metrics.timer("render_seconds", "template", "timeline");
+	
 	private static IStorage storage;
-    public static IStorage getStorage() {
-    	if (storage == null) storage = new HBaseStorage();
+	private static SentimentPipeline sentiment;
+    public static synchronized IStorage getStorage() {
+    	if (storage == null) {
+    		storage = StorageFactory.create();
+    		sentiment = StorageFactory.createSentimentPipeline(storage);
+    	}
     	return storage;
     }
+    
+    /**
+     * @return the pipeline scoring new comments or null if there is none
+     */
+    private static synchronized SentimentPipeline getSentimentPipeline() {
+    	return sentiment;
+    }
+    
+    /**
+     * Close the storage, if it was opened
+     */
+    public static synchronized void closeStorage() {
+    	if (storage == null) return;
+    	// Queued comments are scored before the storage goes
+    	if (sentiment != null) sentiment.close();
+    	sentiment = null;
+    	try {
+    		storage.close();
+    	} catch (IOException e) {
+    		Logger.error("Could not close the storage", e);
+    	}
+    	storage = null;
+    }
   
-    public static Result index() {
-        return ok(views.html.index.render());
+    /**
+     * Run a storage call on the storage I/O pool
+     * @param call
+     * @return a promise of the call's result
+     * @throws RejectedExecutionException if the pool's queue is full
+     */
+    private static <T> F.Promise<T> io(Callable<T> call) {
+    	return WorkerPools.storage().submit(call);
+    }
+    
+    /**
+     * Show a page of the gallery
+     * @param cursor the cursor of the page or null for the newest photos
+     * @return
+     */
+    public static Result index(String cursor) {
+    	return async(gallery(OK, cursor));
+    }
+    
+    /**
+     * Add the comment counts to the photos of a page, which is shown without
+     * them if they cannot be read
+     * @param page
+     */
+    private static void addCommentCounts(PhotoPage page) {
+    	List<byte[]> keys = new ArrayList<byte[]>(page.getPhotos().size());
+    	for (PhotoInfo info : page.getPhotos()) keys.add(info.getKey());
+    	try {
+    		long[] counts = getStorage().getCommentCounts(keys);
+    		for (int i = 0; i < counts.length; i++) page.getPhotos().get(i).setCommentCount(counts[i]);
+    	} catch (IOException e) {
+    		Logger.warn("Could not read comment counts", e);
+    	}
+    }
+    
+    /**
+     * @param cursor
+     * @return a page of the gallery, empty if the storage could not be read
+     */
+    private static F.Promise<PhotoPage> galleryPage(final String cursor) {
+    	return io(new Callable<PhotoPage>() {
+    		@Override
+    		public PhotoPage call() throws IOException {
+    			PhotoPage page = getStorage().listPhotos(cursor, PAGE_SIZE);
+    			addCommentCounts(page);
+    			return page;
+    		}
+    	}).recover(new ContextFunction<Throwable, PhotoPage>() {
+    		@Override
+    		protected PhotoPage run(Throwable t) throws Throwable {
+    			if (!(t instanceof IOException)) throw t;
+    			flash("error", "Error when listing photos: " + t.getMessage());
+    			Logger.error("", t);
+    			return PhotoPage.EMPTY;
+    		}
+    	});
+    }
+    
+    /**
+     * @param key
+     * @return the sentiment of a photo's comments, none if it could not be read
+     */
+    private static F.Promise<SentimentSummary> sentiment(final byte[] key) {
+    	return io(new Callable<SentimentSummary>() {
+    		@Override
+    		public SentimentSummary call() throws IOException {
+    			return getStorage().getSentiment(key);
+    		}
+    	}).recover(new ContextFunction<Throwable, SentimentSummary>() {
+    		@Override
+    		protected SentimentSummary run(Throwable t) throws Throwable {
+    			if (!(t instanceof IOException)) throw t;
+    			Logger.warn("Could not read sentiment", t);
+    			return SentimentSummary.NONE;
+    		}
+    	});
+    }
+    
+    /**
+     * Render the gallery once its page is read
+     * @param status the status of the response
+     * @param cursor
+     * @return
+     */
+    private static F.Promise<Result> gallery(final int status, String cursor) {
+    	try {
+    		return galleryPage(cursor).map(new ContextFunction<PhotoPage, Result>() {
+    			@Override
+    			protected Result run(PhotoPage page) {
+    				long start = RENDER_INDEX.start();
+    				try {
+    					return status(status, views.html.index.render(page));
+    				} finally {
+    					RENDER_INDEX.stop(start);
+    				}
+    			}
+    		}).recover(new ContextFunction<Throwable, Result>() {
+    			@Override
+    			protected Result run(Throwable t) {
+    				return failure(t);
+    			}
+    		});
+    	} catch (RejectedExecutionException e) {
+    		return F.Promise.pure(failure(e));
+    	}
+    }
+    
+    /**
+     * @param t
+     * @return the response to a request that failed with the given error
+     */
+    private static Result failure(Throwable t) {
+    	if (t instanceof RejectedExecutionException) {
+    		return status(SERVICE_UNAVAILABLE, "The server is busy, please try again later");
+    	}
+    	if (t instanceof IllegalArgumentException) {
+    		return badRequest(t.getMessage());
+    	}
+    	Logger.error("", t);
+    	return internalServerError();
     }
 
     /**
      * Upload a new photo to the database
      * @return
-     * @throws IOException
      */
-    public static Result upload() throws IOException {
+    public static Result upload() {
     	DynamicForm form = Form.form().bindFromRequest();
-    	String title = form.get("title");
+    	final String title = form.get("title");
     	
     	MultipartFormData formData = request().body().asMultipartFormData();
     	if (formData == null) {
 			flash("error", "Wrong request body format");
-			return badRequest(views.html.index.render());
+			return async(gallery(BAD_REQUEST, null));
 		}
-		FilePart data = formData.getFile("data");
-		if (data == null) {
+		final FilePart data = formData.getFile("data");
+		if (data == null || data.getFile() == null) {
 			flash("error", "Missing file!");
-			return badRequest(views.html.index.render());
+			return async(gallery(BAD_REQUEST, null));
 		}
 		
-		File file = data.getFile();
-		if (file == null) {
-			flash("error", "Missing file!");
-			return badRequest(views.html.index.render());
-		}
-		
-		ByteArrayOutputStream outstream = new ByteArrayOutputStream();
-		BufferedImage image;
-		String base64 = null;
+		// Decoding and encoding is CPU bound, keep it off the request threads
+		F.Promise<Photo> transcoded;
 		try {
-			image = ImageIO.read(file);
-			ImageIO.write(image, "jpg", outstream);
-			outstream.flush();
-			base64=Base64.encodeBase64String(outstream.toByteArray());
-		} catch (Exception e) {
-			flash("error", "Error when reading an image: " + e.getMessage());
-			Logger.error("Image read error", e);
-			return badRequest(views.html.index.render());
-		} finally {
-			outstream.close();
+			transcoded = WorkerPools.transcoder().submit(new Callable<Photo>() {
+				@Override
+				public Photo call() throws Exception {
+					return transcode(title, data.getFile());
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			flash("error", "Too many uploads in progress, please try again later");
+			return async(gallery(SERVICE_UNAVAILABLE, null));
 		}
 		
-		byte[] imgbytes = Base64.decodeBase64(base64);
-		Photo photo = new Photo(title, imgbytes, new Date().getTime());
-		boolean success = false;
-		try {
-			success = getStorage().store(photo);
-		} catch (IOException e) {
-			flash("error", e.getMessage());
-			Logger.error("", e);
-		}
+		// Every outcome is flashed and shown on the gallery the client is redirected to
+		F.Promise<Result> result = transcoded.flatMap(new ContextFunction<Photo, F.Promise<Boolean>>() {
+			@Override
+			protected F.Promise<Boolean> run(final Photo photo) {
+				if (photo == null) return F.Promise.pure(false);
+				return io(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws IOException {
+						return getStorage().store(photo);
+					}
+				}).recover(new ContextFunction<Throwable, Boolean>() {
+					@Override
+					protected Boolean run(Throwable t) throws Throwable {
+						if (!(t instanceof IOException)) throw t;
+						flash("error", t.getMessage());
+						Logger.error("", t);
+						return null;
+					}
+				});
+			}
+		}).map(new ContextFunction<Boolean, Result>() {
+			@Override
+			protected Result run(Boolean success) {
+				if (success == null) return redirect(routes.Application.index(null));
+				
+				if (!success) flash("error", "Image already exists");
+				else flash("success", "Image uploaded");
+				return redirect(routes.Application.index(null));
+			}
+		}).recover(new ContextFunction<Throwable, Result>() {
+			@Override
+			protected Result run(Throwable t) {
+				if (!(t instanceof IOException)) return failure(t);
+				flash("error", "Error when reading an image: " + t.getMessage());
+				Logger.error("Image read error", t);
+				return redirect(routes.Application.index(null));
+			}
+		});
+		return async(result);
+    }
+    
+    /**
+     * Read, decode and downscale an uploaded image
+     * @param title
+     * @param file
+     * @return the photo to store or null if the image or a near duplicate is already stored
+     * @throws IOException if the file is not an image that can be stored
+     */
+    private static Photo transcode(String title, File file) throws IOException {
+		long start = UPLOAD_READ.start();
+		ImageUpload upload = ImageUpload.read(file);
+		UPLOAD_READ.stop(start);
+		// JPEGs are stored as uploaded, so duplicates are known before decoding
+		if (upload.isJpeg() && getStorage().findPhoto(upload.getHash()) != null) return null;
+		
+		start = UPLOAD_DECODE.start();
+		upload.decode();
+		UPLOAD_DECODE.stop(start);
 		
-		if (!success) flash("error", "Image already exists");
-		else flash("success", "Image uploaded");
+		start = UPLOAD_SIMILAR.start();
+		Photo photo = upload.toPhoto(title, new Date().getTime());
+		boolean nearDuplicate = NEAR_DUPLICATE_DISTANCE > 0
+				&& !getStorage().findSimilar(photo.getPerceptualHash(), NEAR_DUPLICATE_DISTANCE).isEmpty();
+		UPLOAD_SIMILAR.stop(start);
+		if (nearDuplicate) return null;
 		
-		return index();
+		start = UPLOAD_DERIVE.start();
+		upload.addDerivatives(photo);
+		UPLOAD_DERIVE.stop(start);
+		return photo;
     }
     
     /**
@@ -101,16 +333,267 @@ public class Application extends Controller {
      * @return
      */
     public static Result viewPhoto(String imageHash, Long date) {
-    	byte[] key = getStorage().getPhotoKey(imageHash, date);
-    	Photo p;
-		try {
-			p = storage.getPhoto(key);
-		} catch (IOException e) {
-			flash("error", "Error when reading photo: " + e.getMessage());
-			Logger.error("", e);
-			return badRequest(views.html.index.render());
-		}
-    	return ok(views.html.viewPhoto.render(p));
+    	final byte[] key = getStorage().getPhotoKey(imageHash, date);
+    	try {
+    		// The gallery behind the photo and the photo's sentiment are read
+    		// concurrently with the photo
+    		final F.Promise<PhotoPage> page = galleryPage(null);
+    		final F.Promise<SentimentSummary> sentiment = sentiment(key);
+    		// The page shows the title and date only, the image is read by rawPhoto
+    		F.Promise<PhotoInfo> photo = io(new Callable<PhotoInfo>() {
+    			@Override
+    			public PhotoInfo call() throws IOException {
+    				return getStorage().getPhotoInfo(key);
+    			}
+    		});
+    		
+    		F.Promise<Result> result = photo.flatMap(new ContextFunction<PhotoInfo, F.Promise<Result>>() {
+    			@Override
+    			protected F.Promise<Result> run(final PhotoInfo p) {
+    				if (p == null) {
+    					flash("error", "Photo not found");
+    					return gallery(NOT_FOUND, null);
+    				}
+    				return io(new Callable<List<Comment>>() {
+    					@Override
+    					public List<Comment> call() {
+    						List<Comment> comments = new ArrayList<Comment>();
+    						for (Comment c : getStorage().getComments(new Photo(p.getImageHash(), p.getDate()))) comments.add(c);
+    						return comments;
+    					}
+    				}).flatMap(new ContextFunction<List<Comment>, F.Promise<Result>>() {
+    					@Override
+    					protected F.Promise<Result> run(final List<Comment> comments) {
+    						return page.flatMap(new ContextFunction<PhotoPage, F.Promise<Result>>() {
+    							@Override
+    							protected F.Promise<Result> run(final PhotoPage page) {
+    								return sentiment.map(new ContextFunction<SentimentSummary, Result>() {
+    									@Override
+    									protected Result run(SentimentSummary summary) {
+    										long start = RENDER_VIEW_PHOTO.start();
+    										try {
+    											return ok(views.html.viewPhoto.render(page, p, comments, summary));
+    										} finally {
+    											RENDER_VIEW_PHOTO.stop(start);
+    										}
+    									}
+    								});
+    							}
+    						});
+    					}
+    				});
+    			}
+    		}).recover(new ContextFunction<Throwable, Result>() {
+    			@Override
+    			protected Result run(Throwable t) {
+    				if (!(t instanceof IOException)) return failure(t);
+    				flash("error", "Error when reading photo: " + t.getMessage());
+    				Logger.error("", t);
+    				return redirect(routes.Application.index(null));
+    			}
+    		});
+    		return async(result);
+    	} catch (RejectedExecutionException e) {
+    		return failure(e);
+    	}
+    }
+    
+    /**
+     * Search the photo titles and comments
+     * @param q the query, a word ending with * matches the words it starts
+     * @param cursor
+     * @return
+     */
+    public static Result search(final String q, final String cursor) {
+    	try {
+    		F.Promise<Result> result = io(new Callable<PhotoPage>() {
+    			@Override
+    			public PhotoPage call() throws IOException {
+    				PhotoPage page = getStorage().search(q, cursor, PAGE_SIZE);
+    				addCommentCounts(page);
+    				return page;
+    			}
+    		}).recover(new ContextFunction<Throwable, PhotoPage>() {
+    			@Override
+    			protected PhotoPage run(Throwable t) throws Throwable {
+    				if (!(t instanceof IOException)) throw t;
+    				flash("error", "Error when searching photos: " + t.getMessage());
+    				Logger.error("", t);
+    				return PhotoPage.EMPTY;
+    			}
+    		}).map(new ContextFunction<PhotoPage, Result>() {
+    			@Override
+    			protected Result run(PhotoPage page) {
+    				long start = RENDER_SEARCH.start();
+    				try {
+    					return ok(views.html.search.render(q, page));
+    				} finally {
+    					RENDER_SEARCH.stop(start);
+    				}
+    			}
+    		}).recover(new ContextFunction<Throwable, Result>() {
+    			@Override
+    			protected Result run(Throwable t) {
+    				return failure(t);
+    			}
+    		});
+    		return async(result);
+    	} catch (RejectedExecutionException e) {
+    		return failure(e);
+    	}
+    }
+    
+    /**
+     * Browse the photos of a range of dates, with the photo counts of every
+     * month and of the days of the range
+     * @param from the earliest date shown, or null
+     * @param to the date after the latest shown, or null
+     * @param cursor
+     * @return
+     */
+    public static Result timeline(final Long from, final Long to, final String cursor) {
+    	try {
+    		// The page and both histograms are read concurrently
+    		final F.Promise<List<TimelineBucket>> months = timelineBuckets(null, null, TimelineBucket.Period.MONTH);
+    		final F.Promise<List<TimelineBucket>> days = from == null || to == null
+    				? F.Promise.pure(Collections.<TimelineBucket>emptyList())
+    				: timelineBuckets(from, to, TimelineBucket.Period.DAY);
+    		F.Promise<PhotoPage> page = io(new Callable<PhotoPage>() {
+    			@Override
+    			public PhotoPage call() throws IOException {
+    				PhotoPage page = getStorage().listPhotos(from, to, cursor, PAGE_SIZE);
+    				addCommentCounts(page);
+    				return page;
+    			}
+    		});
+    		
+    		F.Promise<Result> result = page.flatMap(new ContextFunction<PhotoPage, F.Promise<Result>>() {
+    			@Override
+    			protected F.Promise<Result> run(final PhotoPage page) {
+    				return months.flatMap(new ContextFunction<List<TimelineBucket>, F.Promise<Result>>() {
+    					@Override
+    					protected F.Promise<Result> run(final List<TimelineBucket> months) {
+    						return days.map(new ContextFunction<List<TimelineBucket>, Result>() {
+    							@Override
+    							protected Result run(List<TimelineBucket> days) {
+    								long start = RENDER_TIMELINE.start();
+    								try {
+    									return ok(views.html.timeline.render(from, to, months, days, page));
+    								} finally {
+    									RENDER_TIMELINE.stop(start);
+    								}
+    							}
+    						});
+    					}
+    				});
+    			}
+    		}).recover(new ContextFunction<Throwable, Result>() {
+    			@Override
+    			protected Result run(Throwable t) {
+    				if (!(t instanceof IOException)) return failure(t);
+    				flash("error", "Error when listing photos: " + t.getMessage());
+    				Logger.error("", t);
+    				return redirect(routes.Application.index(null));
+    			}
+    		});
+    		return async(result);
+    	} catch (RejectedExecutionException e) {
+    		return failure(e);
+    	}
+    }
+    
+    /**
+     * @param from
+     * @param to
+     * @param period
+     * @return the photo counts of the periods of a range
+     */
+    private static F.Promise<List<TimelineBucket>> timelineBuckets(final Long from, final Long to, final TimelineBucket.Period period) {
+    	return io(new Callable<List<TimelineBucket>>() {
+    		@Override
+    		public List<TimelineBucket> call() throws IOException {
+    			return getStorage().getTimeline(from, to, period);
+    		}
+    	});
+    }
+    
+    /**
+     * Serve the stored bytes of a photo. Photos are content addressed, so the
+     * image hash doubles as a strong ETag and the response never changes. Only
+     * the photo itself is cached, errors must be retried.
+     * @param imageHash
+     * @param date
+     * @param size one of the Photo.Size names, case insensitive
+     * @return
+     */
+    public static Result rawPhoto(String imageHash, Long date, String size) {
+    	response().setHeader(CACHE_CONTROL, "no-cache");
+    	Photo.Size photoSize;
+    	try {
+    		photoSize = Photo.Size.valueOf(size.toUpperCase());
+    	} catch (IllegalArgumentException e) {
+    		return badRequest("Unknown size " + size);
+    	}
+    	
+    	final String etag = photoSize.isDerivative() 
+    			? "\"" + imageHash + "-" + photoSize.name().toLowerCase() + "\"" 
+    			: "\"" + imageHash + "\"";
+    	
+    	// The hash is part of the request, so revalidation needs no storage read
+    	if (etagMatches(request().getHeader(IF_NONE_MATCH), etag)) {
+    		cacheForever(etag);
+    		return status(NOT_MODIFIED);
+    	}
+    	
+    	final byte[] key = getStorage().getPhotoKey(imageHash, date);
+    	final Photo.Size contentSize = photoSize;
+    	try {
+	    	// Large originals are streamed a chunk at a time rather than read whole
+	    	return async(io(new Callable<InputStream>() {
+	    		@Override
+	    		public InputStream call() throws IOException {
+	    			return getStorage().openPhotoContents(key, contentSize);
+	    		}
+	    	}).map(new ContextFunction<InputStream, Result>() {
+	    		@Override
+	    		protected Result run(InputStream contents) {
+	    			if (contents == null) return notFound();
+	    			cacheForever(etag);
+	    			response().setContentType("image/jpeg");
+	    			return ok(contents);
+	    		}
+	    	}).recover(new ContextFunction<Throwable, Result>() {
+	    		@Override
+	    		protected Result run(Throwable t) {
+	    			return failure(t);
+	    		}
+	    	}));
+    	} catch (RejectedExecutionException e) {
+    		return failure(e);
+    	}
+    }
+    
+    /**
+     * Let browsers and proxies keep the response for good
+     * @param etag
+     */
+    private static void cacheForever(String etag) {
+    	response().setHeader(ETAG, etag);
+    	response().setHeader(CACHE_CONTROL, "public, max-age=" + CACHE_MAX_AGE + ", immutable");
+    }
+    
+    /**
+     * @param ifNoneMatch
+     * @param etag
+     * @return true if the If-None-Match header value contains the given etag
+     */
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+    	if (ifNoneMatch == null) return false;
+    	for (String candidate : ifNoneMatch.split(",")) {
+    		candidate = candidate.trim();
+    		if (candidate.equals("*") || candidate.equals(etag)) return true;
+    	}
+    	return false;
     }
     
     /**
@@ -119,30 +602,66 @@ public class Application extends Controller {
      * @param photoDate
      * @return
      */
-    public static Result addComment(String imageHash, Long photoDate) {
-    	byte[] photoKey = getStorage().getPhotoKey(imageHash, photoDate);
-    	Photo p;
-		try {
-			p = storage.getPhoto(photoKey);
-		} catch (IOException e) {
-			flash("error", "Error when reading photo: " + e.getMessage());
-			Logger.error("", e);
-			return badRequest(views.html.index.render());
-		}
-		
+    public static Result addComment(final String imageHash, final Long photoDate) {
+    	if (!isImageHash(imageHash)) return badRequest("Malformed image hash " + imageHash);
     	DynamicForm form = Form.form().bindFromRequest();
     	String body = form.get("comment_body");
-    	Date cdate = new Date();
-    	Comment c = new Comment(body, p, cdate.getTime());
-    	try {
-			getStorage().store(c);
-		} catch (IOException e) {
-			flash("error", e.getMessage());
-			Logger.error("", e);
-		}
     	
-    	flash("success", "Added comment");
-		
-		return viewPhoto(imageHash, photoDate);
+    	// A comment only needs its parent's hash and date, the photo is never read
+    	final Comment c = new Comment(body, new Photo(imageHash, photoDate), new Date().getTime());
+    	try {
+	    	// Whether the comment was written, or null if the photo does not exist
+	    	return async(io(new Callable<Boolean>() {
+	    		@Override
+	    		public Boolean call() throws IOException {
+	    			byte[] key = getStorage().findPhoto(imageHash);
+	    			if (key == null || !Arrays.equals(key, getStorage().getPhotoKey(imageHash, photoDate))) return null;
+	    			if (!getStorage().store(c)) return false;
+	    			// Scored in the background, this never waits
+	    			SentimentPipeline pipeline = getSentimentPipeline();
+	    			if (pipeline != null) pipeline.submit(c);
+	    			return true;
+	    		}
+	    	}).map(new ContextFunction<Boolean, Result>() {
+	    		@Override
+	    		protected Result run(Boolean stored) {
+	    			if (stored == null) return notFound("Photo not found");
+	    			if (stored) flash("success", "Added comment");
+	    			else flash("error", "Another comment was added at the same time, please try again");
+	    			return redirect(routes.Application.viewPhoto(imageHash, photoDate));
+	    		}
+	    	}).recover(new ContextFunction<Throwable, Result>() {
+	    		@Override
+	    		protected Result run(Throwable t) {
+	    			if (!(t instanceof IOException)) return failure(t);
+	    			flash("error", t.getMessage());
+	    			Logger.error("", t);
+	    			return redirect(routes.Application.viewPhoto(imageHash, photoDate));
+	    		}
+	    	}));
+    	} catch (RejectedExecutionException e) {
+    		return failure(e);
+    	}
     }   
+    
+    /**
+     * @param imageHash
+     * @return whether the hash is the hex encoded MD5 photos are keyed by
+     */
+    private static boolean isImageHash(String imageHash) {
+    	if (imageHash == null || imageHash.length() != 32) return false;
+    	for (int i = 0; i < imageHash.length(); i++) {
+    		if (Character.digit(imageHash.charAt(i), 16) < 0) return false;
+    	}
+    	return true;
+    }
+    
+    /**
+     * The application's metrics in the Prometheus text format
+     * @return
+     */
+    public static Result metrics() {
+    	response().setHeader(CACHE_CONTROL, "no-cache");
+    	return ok(Metrics.render()).as("text/plain; version=0.0.4");
+    }
 }
@@ -0,0 +1,28 @@
+package controllers;
+
+import play.libs.F;
+import play.mvc.Http;
+
+/**
+ * A promise callback run with the HTTP context of the request that created it.
+ * Play does not carry the context over to the threads completing promises, and
+ * flash, session and templates all depend on it.
+ *
+ */
+abstract class ContextFunction<A, B> implements F.Function<A, B> {
+
+	private final Http.Context context = Http.Context.current();
+	
+	@Override
+	public final B apply(A a) throws Throwable {
+		Http.Context previous = Http.Context.current.get();
+		Http.Context.current.set(context);
+		try {
+			return run(a);
+		} finally {
+			Http.Context.current.set(previous);
+		}
+	}
+	
+	protected abstract B run(A a) throws Throwable;
+}
@@ -0,0 +1,277 @@
+package models;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import utils.ByteBufferInputStream;
+import utils.DiskBlobCache;
+import utils.LruCache;
+
+/**
+ * An IStorage decorator caching photos read from the wrapped storage. The cache
+ * is bounded by the bytes of image data it holds. Photos are content addressed
+ * and never change once stored, so entries never need to be invalidated; newly
+ * stored photos are added to the cache as they are likely to be viewed next.
+ * 
+ * Image contents can also be cached in a second level DiskBlobCache, which is
+ * consulted on misses of the heap cache. Contents found on disk are not added
+ * to the heap cache, they already are in the page cache.
+ *
+ */
+public class CachingStorage implements IStorage {
+
+	static Logger log = LoggerFactory.getLogger(CachingStorage.class);
+	
+	/**
+	 * Cache key of a whole photo or, when a size is given, of its contents in that size
+	 */
+	private static class CacheKey {
+		final byte[] key;
+		final Photo.Size size;
+		
+		CacheKey(byte[] key, Photo.Size size) {
+			this.key = key;
+			this.size = size;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof CacheKey)) return false;
+			CacheKey other = (CacheKey) o;
+			return size == other.size && Arrays.equals(key, other.key);
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * Arrays.hashCode(key) + (size == null ? 0 : size.hashCode());
+		}
+	}
+	
+	private final IStorage storage;
+	private final LruCache<CacheKey, Object> cache;
+	private final DiskBlobCache diskCache;
+	
+	/**
+	 * @param storage the storage to cache
+	 * @param maxBytes the most image data the heap cache may hold
+	 * @param diskCache the second level cache of image contents or null
+	 */
+	public CachingStorage(IStorage storage, long maxBytes, DiskBlobCache diskCache) {
+		log.info("Caching up to {} bytes of photos", maxBytes);
+		this.storage = storage;
+		this.cache = new LruCache<CacheKey, Object>(maxBytes);
+		this.diskCache = diskCache;
+	}
+	
+	/**
+	 * @return the underlying cache, for its statistics
+	 */
+	public LruCache<?, ?> getCache() {
+		return cache;
+	}
+	
+	/**
+	 * @return the second level cache or null
+	 */
+	public DiskBlobCache getDiskCache() {
+		return diskCache;
+	}
+	
+	@Override
+	public boolean store(Photo photo) throws IOException {
+		boolean stored = storage.store(photo);
+		if (stored) {
+			byte[] key = getPhotoKey(photo.getImageHash(), photo.getDate());
+			for (Photo.Size size : Photo.Size.values()) {
+				byte[] contents = photo.getContents(size);
+				if (contents == null) continue;
+				cache.put(new CacheKey(key, size), contents, contents.length);
+				if (diskCache != null) diskCache.put(diskKey(key, size), contents);
+			}
+		}
+		return stored;
+	}
+	
+	@Override
+	public byte[] findPhoto(String imageHash) throws IOException {
+		return storage.findPhoto(imageHash);
+	}
+	
+	@Override
+	public boolean store(Comment comment) throws IOException {
+		return storage.store(comment);
+	}
+	
+	@Override
+	public Photo getPhoto(byte[] key) throws IOException {
+		CacheKey cacheKey = new CacheKey(key, null);
+		Photo photo = (Photo) cache.get(cacheKey);
+		if (photo == null) {
+			photo = storage.getPhoto(key);
+			if (photo != null) cache.put(cacheKey, photo, weigh(photo));
+		}
+		return photo;
+	}
+	
+	@Override
+	public PhotoInfo getPhotoInfo(byte[] key) throws IOException {
+		return storage.getPhotoInfo(key);
+	}
+	
+	@Override
+	public byte[] getPhotoContents(byte[] key, Photo.Size size) throws IOException {
+		CacheKey cacheKey = new CacheKey(key, size);
+		byte[] contents = (byte[]) cache.get(cacheKey);
+		if (contents != null) return contents;
+		
+		if (diskCache != null) {
+			ByteBuffer cached = diskCache.get(diskKey(key, size));
+			if (cached != null) {
+				contents = new byte[cached.remaining()];
+				cached.get(contents);
+				return contents;
+			}
+		}
+		
+		contents = storage.getPhotoContents(key, size);
+		if (contents == null) return null;
+		cacheContents(key, size, contents);
+		return contents;
+	}
+	
+	/**
+	 * Cached contents are streamed from the heap or straight from the disk
+	 * cache's mapping. Missing contents the storage returns in memory, the
+	 * derivatives and inline originals, are cached as by
+	 * {@link #getPhotoContents}. Only chunked originals are streamed from the
+	 * storage without being cached.
+	 */
+	@Override
+	public InputStream openPhotoContents(byte[] key, Photo.Size size) throws IOException {
+		byte[] contents = (byte[]) cache.get(new CacheKey(key, size));
+		if (contents != null) return new ByteArrayInputStream(contents);
+		
+		if (diskCache != null) {
+			ByteBuffer cached = diskCache.get(diskKey(key, size));
+			if (cached != null) return new ByteBufferInputStream(cached);
+		}
+		
+		InputStream in = storage.openPhotoContents(key, size);
+		if (!(in instanceof ByteArrayInputStream)) return in;
+		
+		// Already read whole, so reading it again costs no RPC
+		contents = new byte[in.available()];
+		in.read(contents);
+		cacheContents(key, size, contents);
+		return new ByteArrayInputStream(contents);
+	}
+	
+	/**
+	 * Add contents read from the storage to both cache levels
+	 * @param key
+	 * @param size
+	 * @param contents
+	 */
+	private void cacheContents(byte[] key, Photo.Size size, byte[] contents) {
+		if (diskCache != null) diskCache.put(diskKey(key, size), contents);
+		cache.put(new CacheKey(key, size), contents, contents.length);
+	}
+	
+	/**
+	 * @param key
+	 * @param size
+	 * @return the key of a photo's contents in the given size in the disk cache
+	 */
+	private static byte[] diskKey(byte[] key, Photo.Size size) {
+		byte[] diskKey = Arrays.copyOf(key, key.length + 1);
+		diskKey[key.length] = (byte) size.ordinal();
+		return diskKey;
+	}
+	
+	@Override
+	public PhotoPage listPhotos(String cursor, int pageSize) throws IOException {
+		return storage.listPhotos(cursor, pageSize);
+	}
+	
+	@Override
+	public PhotoPage listPhotos(Long from, Long to, String cursor, int pageSize) throws IOException {
+		return storage.listPhotos(from, to, cursor, pageSize);
+	}
+	
+	@Override
+	public List<TimelineBucket> getTimeline(Long from, Long to, TimelineBucket.Period period) throws IOException {
+		return storage.getTimeline(from, to, period);
+	}
+	
+	@Override
+	public byte[] getPhotoKey(String hashId, Long date) {
+		return storage.getPhotoKey(hashId, date);
+	}
+	
+	@Override
+	public byte[] getCommentKey(String hashId, Long date) {
+		return storage.getCommentKey(hashId, date);
+	}
+	
+	@Override
+	public Iterable<Comment> getComments(Photo p) {
+		return storage.getComments(p);
+	}
+	
+	@Override
+	public Map<byte[], List<Comment>> getComments(List<Photo> photos) throws IOException {
+		return storage.getComments(photos);
+	}
+	
+	@Override
+	public long[] getCommentCounts(List<byte[]> photoKeys) throws IOException {
+		return storage.getCommentCounts(photoKeys);
+	}
+	
+	@Override
+	public void storeSentiments(List<Comment> comments) throws IOException {
+		storage.storeSentiments(comments);
+	}
+	
+	@Override
+	public SentimentSummary getSentiment(byte[] photoKey) throws IOException {
+		return storage.getSentiment(photoKey);
+	}
+	
+	@Override
+	public List<byte[]> findSimilar(long perceptualHash, int maxDistance) throws IOException {
+		return storage.findSimilar(perceptualHash, maxDistance);
+	}
+	
+	@Override
+	public PhotoPage search(String query, String cursor, int pageSize) throws IOException {
+		return storage.search(query, cursor, pageSize);
+	}
+	
+	/**
+	 * @param photo
+	 * @return the bytes of image data the photo holds
+	 */
+	private static long weigh(Photo photo) {
+		long weight = 0;
+		for (Photo.Size size : Photo.Size.values()) {
+			byte[] contents = photo.getContents(size);
+			if (contents != null) weight += contents.length;
+		}
+		return weight;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (diskCache != null) diskCache.close();
+		storage.close();
+	}
+}
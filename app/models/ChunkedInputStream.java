@@ -0,0 +1,85 @@
+package models;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+
+/**
+ * Reads a large object stored as consecutive chunk rows, fetching one chunk at
+ * a time from a scanner over the object's rows. Closing the stream closes the
+ * scanner and returns the table.
+ *
+ */
+class ChunkedInputStream extends InputStream {
+
+	private final HTableInterface table;
+	private final ResultScanner scanner;
+	private final byte[] family;
+	private final byte[] column;
+	
+	private byte[] chunk = new byte[0];
+	private int position;
+	private boolean exhausted;
+	
+	/**
+	 * @param table the table to close with the stream
+	 * @param scanner a scanner over the chunk rows, in order
+	 * @param family
+	 * @param column the column holding the chunk data
+	 */
+	ChunkedInputStream(HTableInterface table, ResultScanner scanner, byte[] family, byte[] column) {
+		this.table = table;
+		this.scanner = scanner;
+		this.family = family;
+		this.column = column;
+	}
+	
+	/**
+	 * @return false once all chunks are read
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		while (position == chunk.length) {
+			if (exhausted) return false;
+			Result row = scanner.next();
+			if (row == null) {
+				exhausted = true;
+				return false;
+			}
+			byte[] data = row.getValue(family, column);
+			chunk = data == null ? new byte[0] : data;
+			position = 0;
+		}
+		return true;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (!fill()) return -1;
+		return chunk[position++] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!fill()) return -1;
+		int n = Math.min(len, chunk.length - position);
+		System.arraycopy(chunk, position, b, off, n);
+		position += n;
+		return n;
+	}
+	
+	@Override
+	public int available() {
+		return chunk.length - position;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		scanner.close();
+		table.close();
+	}
+}
@@ -12,10 +12,12 @@ public class Comment {
 	private String contents;
 	private Photo parent;
 	private Long date;
+	private Sentiment sentiment;
 	
 	public static enum Sentiment {
 		POSITIVE,
-		NEGATIVE
+		NEGATIVE,
+		NEUTRAL
 	};
 	
 	public Comment(String contents, Photo parent, Long date) {
@@ -33,4 +35,15 @@ public class Comment {
 	public Long getDate() {
 		return date;
 	}
+	
+	/**
+	 * @return the sentiment of the comment or null if it is not scored yet
+	 */
+	public Sentiment getSentiment() {
+		return sentiment;
+	}
+	
+	public void setSentiment(Sentiment sentiment) {
+		this.sentiment = sentiment;
+	}
 }
@@ -0,0 +1,233 @@
+package models;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Group commit of the Puts of comments. Puts submitted by concurrent callers
+ * are queued and a single flusher thread writes them in batches, collected for
+ * at most a short window or until the batch is full, with one RPC per batch.
+ * The comments of a committed batch are then handed to a listener, which
+ * updates what depends on them for the whole batch at once. Each caller gets
+ * a Future completed once its batch is committed, so nothing is acknowledged
+ * before it is written and only queued Puts can be lost on a crash.
+ *
+ */
+class CommentBatcher {
+
+	static Logger log = LoggerFactory.getLogger(CommentBatcher.class);
+
+	/**
+	 * Told of the comments of each committed batch, on the flusher thread
+	 */
+	static interface Listener {
+		void committed(List<Comment> comments);
+	}
+
+	/**
+	 * A queued Put of a comment and the signal of its commit
+	 */
+	static class PendingComment implements Future<Void> {
+		final Comment comment;
+		final Put put;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Throwable failure;
+
+		PendingComment(Comment comment, Put put) {
+			this.comment = comment;
+			this.put = put;
+		}
+
+		void complete(Throwable t) {
+			failure = t;
+			done.countDown();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		@Override
+		public Void get() throws InterruptedException, ExecutionException {
+			done.await();
+			if (failure != null) throw new ExecutionException(failure);
+			return null;
+		}
+
+		@Override
+		public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit)) throw new TimeoutException();
+			if (failure != null) throw new ExecutionException(failure);
+			return null;
+		}
+	}
+
+	private static final PendingComment SHUTDOWN = new PendingComment(null, null);
+
+	private final BlockingQueue<PendingComment> queue;
+	private final HTable table;
+	private final Listener listener;
+	private final int maxBatch;
+	private final long windowMillis;
+	private final Thread flusher;
+	private volatile boolean closed;
+
+	/**
+	 * @param configuration
+	 * @param tableName
+	 * @param listener
+	 * @param maxBatch the most Puts written in one batch
+	 * @param windowMillis how long to wait for more Puts once one is queued
+	 * @param queueSize the most Puts waiting to be written
+	 * @throws IOException
+	 */
+	CommentBatcher(Configuration configuration, String tableName, Listener listener, int maxBatch, long windowMillis, int queueSize) throws IOException {
+		this.queue = new LinkedBlockingQueue<PendingComment>(queueSize);
+		this.listener = listener;
+		this.maxBatch = maxBatch;
+		this.windowMillis = windowMillis;
+		// Only the flusher thread uses the table, with the client buffering the
+		// batch. A failed batch is dropped from the buffer, its callers are told.
+		this.table = new HTable(configuration, tableName);
+		this.table.setAutoFlush(false, true);
+
+		this.flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, tableName + "-batcher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Queue the Put of a comment for the next batch
+	 * @param comment
+	 * @param put the row of the comment
+	 * @return a Future completed when the Put is committed
+	 * @throws IOException if the batcher is closed or its queue stays full
+	 */
+	Future<Void> submit(Comment comment, Put put) throws IOException {
+		if (closed) throw new IOException("Batcher is closed");
+		PendingComment pending = new PendingComment(comment, put);
+		try {
+			if (!queue.offer(pending, windowMillis * 10, TimeUnit.MILLISECONDS)) {
+				throw new IOException("Too many pending writes");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while queueing a write");
+		}
+		// Closing after the check above may have drained the queue already, the
+		// Put must then be taken back rather than left waiting
+		if (closed && queue.remove(pending)) throw new IOException("Batcher is closed");
+		return pending;
+	}
+
+	private void flushLoop() {
+		List<PendingComment> batch = new ArrayList<PendingComment>(maxBatch);
+		boolean shutdown = false;
+		while (!shutdown) {
+			try {
+				PendingComment first = queue.take();
+				if (first == SHUTDOWN) break;
+				batch.add(first);
+
+				long deadline = System.currentTimeMillis() + windowMillis;
+				while (batch.size() < maxBatch) {
+					long remaining = deadline - System.currentTimeMillis();
+					PendingComment next = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+					if (next == null) break;
+					if (next == SHUTDOWN) {
+						shutdown = true;
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				shutdown = true;
+			}
+
+			flush(batch);
+			batch.clear();
+		}
+
+		// Drain whatever is left after the shutdown marker
+		queue.drainTo(batch);
+		batch.remove(SHUTDOWN);
+		flush(batch);
+	}
+
+	private void flush(List<PendingComment> batch) {
+		if (batch.isEmpty()) return;
+
+		List<Comment> comments = new ArrayList<Comment>(batch.size());
+		List<Put> puts = new ArrayList<Put>(batch.size());
+		for (PendingComment pending : batch) {
+			comments.add(pending.comment);
+			puts.add(pending.put);
+		}
+
+		Throwable failure = null;
+		try {
+			table.put(puts);
+			table.flushCommits();
+			log.debug("Committed a batch of {} writes", puts.size());
+		} catch (Throwable t) {
+			log.error("Batch write failed", t);
+			failure = t;
+		}
+		if (failure == null) {
+			try {
+				listener.committed(comments);
+			} catch (RuntimeException e) {
+				// The comments are written, their callers must still be told
+				log.error("Listener of a committed batch failed", e);
+			}
+		}
+		for (PendingComment pending : batch) pending.complete(failure);
+	}
+
+	/**
+	 * Write the queued Puts and stop the flusher
+	 */
+	void close() {
+		if (closed) return;
+		closed = true;
+		try {
+			queue.put(SHUTDOWN);
+			flusher.join();
+			table.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			log.error("", e);
+		}
+	}
+}
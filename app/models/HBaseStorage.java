@@ -1,22 +1,56 @@
 package models;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HConnectionManager;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Increment;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.FuzzyRowFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import utils.Metrics;
+import utils.PerceptualHash;
+import utils.Settings;
+import utils.TextIndex;
 import utils.Utils;
 
 /**
@@ -34,188 +68,1380 @@ public class HBaseStorage implements IStorage {
 	
 	private static String PHOTO_TABLE = "PHOTO-STORE";
 	private static String COMMENT_TABLE = "COMMENT-STORE";
+	private static String HASH_INDEX_TABLE = "PHOTO-HASH-INDEX";
+	private static String CHUNK_TABLE = "PHOTO-CHUNKS";
+	private static String COUNTER_TABLE = "PHOTO-COUNTERS";
+	private static String SIMILARITY_TABLE = "PHOTO-PHASH-INDEX";
+	private static String TEXT_INDEX_TABLE = "PHOTO-TEXT-INDEX";
+	private static String TIMELINE_TABLE = "PHOTO-TIMELINE";
 	private static String[] COLUMN_FAMILY = {"cf"};
 	private static int KEY_LENGTH = 8 + 32; // 8 for timestamp + 32 for hash id
 	
+	/**
+	 * How long a write-behind comment may wait for its batch to be committed
+	 */
+	private static long COMMENT_COMMIT_TIMEOUT = 10 * 1000;
+	
+	/**
+	 * The newest comments read for a photo
+	 */
+	private static int COMMENTS_PER_PHOTO = 20;
+	
 	Configuration configuration;
-	HTablePool photoPool;
-	HTablePool commentPool;
+	HTablePool tablePool;
+	CommentBatcher commentBatcher;
+	int saltBuckets;
+	ExecutorService scanExecutor;
+	int inlineMaxBytes;
+	int chunkBytes;
+	
+	private final Metrics.Counter photoRowsRead = Metrics.counter("hbase_rows_read_total", "table", "photos");
+	private final Metrics.Counter photoBytesRead = Metrics.counter("hbase_bytes_read_total", "table", "photos");
+	private final Metrics.Counter commentRowsRead = Metrics.counter("hbase_rows_read_total", "table", "comments");
+	private final Metrics.Counter commentBytesRead = Metrics.counter("hbase_bytes_read_total", "table", "comments");
+	
+	public HBaseStorage() {
+		log.info("Opening HBaseStorage");
+		this.configuration = HBaseConfiguration.create();
+		// Settings of the application override hbase-site.xml
+		String quorum = Settings.getString("storage.hbase.zookeeper.quorum", null);
+		if (quorum != null) configuration.set("hbase.zookeeper.quorum", quorum);
+		int clientPort = Settings.getInt("storage.hbase.zookeeper.clientPort", 0);
+		if (clientPort > 0) configuration.setInt("hbase.zookeeper.property.clientPort", clientPort);
+		// All tables share the connection HBase keeps per configuration
+		tablePool = new HTablePool(configuration, Settings.getInt("storage.hbase.tablePoolSize", 32));
+		saltBuckets = Settings.getInt("storage.photos.saltBuckets", 0);
+		assert saltBuckets >= 0 && saltBuckets <= 256 : "Salt buckets must fit in a byte";
+		if (saltBuckets > 0) scanExecutor = Executors.newFixedThreadPool(saltBuckets, daemonThreads("photo-scan"));
+		inlineMaxBytes = Settings.getInt("storage.photos.inlineMaxBytes", 1 << 20);
+		chunkBytes = Settings.getInt("storage.photos.chunkBytes", 512 << 10);
+		
+		try {
+			// The schema is verified once, here, with a single admin session
+			HBaseAdmin admin = new HBaseAdmin(configuration);
+			try {
+				Utils.createHTable(admin, PHOTO_TABLE, COLUMN_FAMILY, saltSplits());
+				Utils.createHTable(admin, COMMENT_TABLE, COLUMN_FAMILY, new byte[0][]);
+				Utils.createHTable(admin, HASH_INDEX_TABLE, COLUMN_FAMILY, new byte[0][]);
+				Utils.createHTable(admin, CHUNK_TABLE, COLUMN_FAMILY, new byte[0][]);
+				Utils.createHTable(admin, COUNTER_TABLE, COLUMN_FAMILY, new byte[0][]);
+				Utils.createHTable(admin, SIMILARITY_TABLE, COLUMN_FAMILY, new byte[0][]);
+				Utils.createHTable(admin, TEXT_INDEX_TABLE, COLUMN_FAMILY, new byte[0][]);
+				Utils.createHTable(admin, TIMELINE_TABLE, COLUMN_FAMILY, new byte[0][]);
+			} finally {
+				admin.close();
+			}
+			
+			registerPoolGauges(PHOTO_TABLE, COMMENT_TABLE, HASH_INDEX_TABLE, CHUNK_TABLE, COUNTER_TABLE, SIMILARITY_TABLE, TEXT_INDEX_TABLE, TIMELINE_TABLE);
+			
+			if (Settings.getBoolean("storage.comments.writeBehind", false)) {
+				commentBatcher = new CommentBatcher(configuration, COMMENT_TABLE, new CommentBatcher.Listener() {
+					@Override
+					public void committed(List<Comment> comments) {
+						commentsWritten(comments);
+					}
+				}, Settings.getInt("storage.comments.batchSize", 500),
+						Settings.getLong("storage.comments.batchWindowMillis", 10),
+						Settings.getInt("storage.comments.queueSize", 10000));
+			}
+		} catch (IOException e) {
+			log.error("HBaseStorage init error");
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Expose the idle tables kept in the pool for each table as metrics
+	 * @param tableNames
+	 */
+	private void registerPoolGauges(String... tableNames) {
+		for (final String tableName : tableNames) {
+			Metrics.gauge(new Metrics.Gauge() {
+				@Override
+				public double value() {
+					return tablePool.getCurrentPoolSize(tableName);
+				}
+			}, "hbase_table_pool_idle", "table", tableName);
+		}
+	}
+	
+	/**
+	 * @param row
+	 * @return the bytes HBase sent for the row
+	 */
+	private static long sizeOf(Result row) {
+		long size = 0;
+		for (KeyValue kv : row.raw()) size += kv.getLength();
+		return size;
+	}
+	
+	/**
+	 * Write pending comments and release the pooled tables and the connection
+	 */
+	@Override
+	public void close() throws IOException {
+		log.info("Closing HBaseStorage");
+		if (commentBatcher != null) commentBatcher.close();
+		if (scanExecutor != null) scanExecutor.shutdown();
+		try {
+			tablePool.close();
+		} finally {
+			HConnectionManager.deleteConnection(configuration, true);
+		}
+	}
+	
+	/**
+	 * @return the keys splitting the photo table in one region per salt bucket
+	 */
+	private byte[][] saltSplits() {
+		byte[][] splits = new byte[Math.max(0, saltBuckets - 1)][];
+		for (int i = 0; i < splits.length; i++) splits[i] = new byte[] {(byte) (i + 1)};
+		return splits;
+	}
+	
+	/**
+	 * @param name
+	 * @return a factory of named daemon threads
+	 */
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+	
+	/**
+	 * Photos are de-duplicated by their hash, which is claimed in the hash index
+	 * before the photo itself is written.
+	 * @return false if a photo with the same hash is already stored
+	 */
+	@Override
+	public boolean store(Photo photo) throws IOException {
+		byte[] key = getPhotoKey(photo.getImageHash(), photo.getDate());
+		if (!claimHash(photo.getImageHash(), key)) {
+			log.debug("Photo {} is already stored", photo.getImageHash());
+			return false;
+		}
+		
+		// Chunks go first, so a manifest never points to missing chunks
+		boolean chunked = photo.getContents().length > inlineMaxBytes;
+		HTableInterface table = tablePool.getTable(PHOTO_TABLE);
+		try {
+			if (chunked) writeChunks(key, photo.getContents());
+			table.put(photoToPut(photo, chunked));
+		} catch (IOException e) {
+			if (chunked) deleteChunks(key);
+			releaseHash(photo.getImageHash(), key);
+			throw e;
+		} finally {
+			log.debug("Returning table to pool");
+			table.close();
+		}
+		
+		indexPhoto(key, photo);
+		return true;
+	}
+	
+	/**
+	 * Store everything of a photo that must precede its row, which is returned
+	 * to be written in an HFile and bulk loaded. The hash is claimed and the
+	 * chunks of a large original are written as by {@link #store(Photo)}, the
+	 * image data itself never goes through the region servers' write path.
+	 * The photo is only indexed by {@link #finishBulkLoad(Photo)}, once its
+	 * row is loaded.
+	 * @param photo
+	 * @return the row of the photo or null if a photo with the same hash is already stored
+	 * @throws IOException
+	 */
+	public Put prepareBulkLoad(Photo photo) throws IOException {
+		byte[] key = getPhotoKey(photo.getImageHash(), photo.getDate());
+		if (!claimHash(photo.getImageHash(), key)) {
+			log.debug("Photo {} is already stored", photo.getImageHash());
+			return null;
+		}
+		
+		boolean chunked = photo.getContents().length > inlineMaxBytes;
+		if (chunked) {
+			try {
+				writeChunks(key, photo.getContents());
+			} catch (IOException e) {
+				releaseHash(photo.getImageHash(), key);
+				throw e;
+			}
+		}
+		return photoToPut(photo, chunked);
+	}
+	
+	/**
+	 * Index a photo prepared by {@link #prepareBulkLoad(Photo)} if its row was
+	 * loaded, or else release its hash and delete its chunks, so that an
+	 * import that failed can be run again.
+	 * @param photo the prepared photo, its contents are not needed
+	 * @return whether the row of the photo was loaded
+	 * @throws IOException
+	 */
+	public boolean finishBulkLoad(Photo photo) throws IOException {
+		byte[] key = getPhotoKey(photo.getImageHash(), photo.getDate());
+		if (photoExists(key)) {
+			indexPhoto(key, photo);
+			return true;
+		}
+		deleteChunks(key);
+		releaseHash(photo.getImageHash(), key);
+		return false;
+	}
+	
+	/**
+	 * @return the table of the rows returned by {@link #prepareBulkLoad(Photo)}
+	 */
+	public static String getPhotoTableName() {
+		return PHOTO_TABLE;
+	}
+	
+	/**
+	 * @return the HBase configuration the storage connects with
+	 */
+	public Configuration getConfiguration() {
+		return configuration;
+	}
+	
+	/**
+	 * Add a stored photo to the secondary indexes. A photo missing from them is
+	 * still stored, so failures are only logged.
+	 * @param key
+	 * @param photo
+	 */
+	private void indexPhoto(byte[] key, Photo photo) {
+		if (photo.getPerceptualHash() != null) {
+			try {
+				indexPerceptualHash(key, photo.getPerceptualHash());
+			} catch (IOException e) {
+				// The photo is stored, it will only not be found as a near duplicate
+				log.error("Could not index the perceptual hash of " + photo.getImageHash(), e);
+			}
+		}
+		try {
+			indexText(key, new byte[0], photo.getTitle(), TextIndex.TITLE_WEIGHT);
+			incrementTextDocuments();
+		} catch (IOException e) {
+			log.error("Could not index the title of " + photo.getImageHash(), e);
+		}
+		try {
+			countInTimeline(photo.getDate());
+		} catch (IOException e) {
+			log.error("Could not count " + photo.getImageHash() + " in the timeline", e);
+		}
+	}
+	
+	@Override
+	public byte[] findPhoto(String imageHash) throws IOException {
+		byte[] key = getIndexedKey(imageHash);
+		if (key == null || !photoExists(key)) return null;
+		return key;
+	}
+
+	@Override
+	public Photo getPhoto(byte[] key) throws IOException {
+		assert key != null : "Null key";
+
+		Get get = new Get(key);
+		HTableInterface table = tablePool.getTable(PHOTO_TABLE);
+		try {
+			Result row = table.get(get);
+			if (row.isEmpty()) {
+				log.debug("Got no entry for {}", key);
+				return null;
+			}
+
+			Photo photo = readPhoto(row, readOriginal(row));
+			return photo;
+		}
+		finally {
+			log.debug("Returning table to pool after txn get");
+			table.close();
+		}
+	}
+
+	/**
+	 * Projected on the title as the listings are, the date is part of the key
+	 */
+	@Override
+	public PhotoInfo getPhotoInfo(byte[] key) throws IOException {
+		assert key != null : "Null key";
+		List<PhotoInfo> photos = readPhotoInfos(Collections.singletonList(key));
+		return photos.isEmpty() ? null : photos.get(0);
+	}
+	
+	@Override
+	public byte[] getPhotoContents(byte[] key, Photo.Size size) throws IOException {
+		assert key != null : "Null key";
+		
+		HTableInterface table = tablePool.getTable(PHOTO_TABLE);
+		try {
+			if (size.isDerivative()) {
+				Get get = new Get(key);
+				get.addColumn(COLUMN_FAMILY[0].getBytes(), columnFor(size));
+				byte[] value = table.get(get).getValue(COLUMN_FAMILY[0].getBytes(), columnFor(size));
+				if (value != null) return value;
+				// Photos stored before derivatives existed only have the original
+				log.debug("No {} derivative, falling back to the original", size);
+			}
+			
+			Get get = new Get(key);
+			get.addColumn(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_VALUE);
+			get.addColumn(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_LENGTH);
+			Result row = table.get(get);
+			return row.isEmpty() ? null : readOriginal(row);
+		} finally {
+			log.debug("Returning table to pool after txn get");
+			table.close();
+		}
+	}
+	
+	/**
+	 * Chunked originals are streamed a chunk at a time, everything else is
+	 * read whole as by {@link #getPhotoContents}
+	 */
+	@Override
+	public InputStream openPhotoContents(byte[] key, Photo.Size size) throws IOException {
+		if (size.isDerivative()) {
+			byte[] contents = getPhotoContents(key, size);
+			return contents == null ? null : new ByteArrayInputStream(contents);
+		}
+		
+		Get get = new Get(key);
+		get.addColumn(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_VALUE);
+		get.addColumn(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_LENGTH);
+		Result row;
+		HTableInterface table = tablePool.getTable(PHOTO_TABLE);
+		try {
+			row = table.get(get);
+		} finally {
+			log.debug("Returning table to pool after txn get");
+			table.close();
+		}
+		if (row.isEmpty()) return null;
+		
+		byte[] value = row.getValue(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_VALUE);
+		if (value != null) return new ByteArrayInputStream(value);
+		return openChunks(key);
+	}
+
+	@Override
+	public PhotoPage listPhotos(String cursor, int pageSize) throws IOException {
+		return listPhotos(null, null, cursor, pageSize);
+	}
+	
+	/**
+	 * Keys start with the inverse date, so the range is a single scan between
+	 * the keys of its dates. With salted keys every bucket is scanned in
+	 * parallel and the buckets' rows are merged back into newest first order.
+	 */
+	@Override
+	public PhotoPage listPhotos(Long from, Long to, String cursor, int pageSize) throws IOException {
+		assert pageSize > 0 : "Empty page requested";
+		if (from != null && to != null && from >= to) return PhotoPage.EMPTY;
+		
+		// Bounds of the unsalted keys, an inverse date prefix sorts before the keys of its date
+		byte[] startRow = to == null ? new byte[0] : Bytes.toBytes(Long.MAX_VALUE - (to - 1));
+		byte[] stopRow = from == null ? new byte[0] : Bytes.toBytes(Long.MAX_VALUE - (from - 1));
+		if (cursor != null) {
+			byte[] after = Utils.decodeCursor(cursor);
+			startRow = Utils.rowAfter(saltBuckets == 0 ? after : Arrays.copyOfRange(after, 1, after.length));
+		}
+		
+		// One extra row tells us whether there is a next page
+		List<PhotoInfo> photos;
+		if (saltBuckets == 0) {
+			photos = scanPhotos(startRow, stopRow, pageSize + 1);
+		} else {
+			photos = scanBuckets(startRow, stopRow, pageSize + 1);
+		}
+		
+		boolean hasNext = photos.size() > pageSize;
+		if (hasNext) photos = photos.subList(0, pageSize);
+		String nextCursor = hasNext ? Utils.encodeCursor(photos.get(photos.size() - 1).getKey()) : null;
+		return new PhotoPage(photos, nextCursor);
+	}
+	
+	/**
+	 * @param startRow
+	 * @param stopRow
+	 * @param limit
+	 * @return the first photos between the given rows
+	 * @throws IOException
+	 */
+	private List<PhotoInfo> scanPhotos(byte[] startRow, byte[] stopRow, int limit) throws IOException {
+		// Listing only needs the titles, the date and hash are part of the key
+		Scan scan = new Scan(startRow, stopRow);
+		scan.addColumn(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_TITLE);
+		// The whole page in a single RPC
+		scan.setCaching(limit);
+		
+		List<PhotoInfo> photos = new ArrayList<PhotoInfo>(limit);
+		HTableInterface table = tablePool.getTable(PHOTO_TABLE);
+		ResultScanner scanner = table.getScanner(scan);
+		try {
+			for (Result row : scanner) {
+				photoRowsRead.inc();
+				photoBytesRead.add(sizeOf(row));
+				photos.add(readPhotoInfo(row));
+				if (photos.size() == limit) break;
+			}
+		} finally {
+			scanner.close();
+			table.close();
+		}
+		return photos;
+	}
+	
+	/**
+	 * Scan all salt buckets in parallel, each between the same unsalted rows
+	 * @param start the unsalted row every bucket starts from
+	 * @param stop the unsalted row every bucket stops before, empty for the end of the bucket
+	 * @param limit
+	 * @return the first photos across all buckets, newest first
+	 * @throws IOException
+	 */
+	private List<PhotoInfo> scanBuckets(byte[] start, byte[] stop, final int limit) throws IOException {
+		List<Future<List<PhotoInfo>>> scans = new ArrayList<Future<List<PhotoInfo>>>(saltBuckets);
+		for (int bucket = 0; bucket < saltBuckets; bucket++) {
+			byte[] salt = {(byte) bucket};
+			final byte[] startRow = Bytes.add(salt, start);
+			final byte[] stopRow;
+			if (stop.length > 0) {
+				stopRow = Bytes.add(salt, stop);
+			} else {
+				stopRow = bucket == saltBuckets - 1 ? new byte[0] : new byte[] {(byte) (bucket + 1)};
+			}
+			scans.add(scanExecutor.submit(new Callable<List<PhotoInfo>>() {
+				@Override
+				public List<PhotoInfo> call() throws IOException {
+					return scanPhotos(startRow, stopRow, limit);
+				}
+			}));
+		}
+		
+		// Every bucket is sorted, so a k-way merge restores the global order
+		PriorityQueue<PeekingIterator<PhotoInfo>> heads = new PriorityQueue<PeekingIterator<PhotoInfo>>(saltBuckets,
+				new Comparator<PeekingIterator<PhotoInfo>>() {
+					@Override
+					public int compare(PeekingIterator<PhotoInfo> a, PeekingIterator<PhotoInfo> b) {
+						byte[] x = a.peek().getKey();
+						byte[] y = b.peek().getKey();
+						return Bytes.compareTo(x, 1, x.length - 1, y, 1, y.length - 1);
+					}
+				});
+		for (Future<List<PhotoInfo>> scan : scans) {
+			try {
+				PeekingIterator<PhotoInfo> head = new PeekingIterator<PhotoInfo>(scan.get().iterator());
+				if (head.hasNext()) heads.add(head);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while listing photos");
+			} catch (ExecutionException e) {
+				throw new IOException("Bucket scan failed", e.getCause());
+			}
+		}
+		
+		List<PhotoInfo> photos = new ArrayList<PhotoInfo>(limit);
+		while (photos.size() < limit && !heads.isEmpty()) {
+			PeekingIterator<PhotoInfo> head = heads.poll();
+			photos.add(head.next());
+			if (head.hasNext()) heads.add(head);
+		}
+		return photos;
+	}
+	
+	/**
+	 * An iterator whose next element can be looked at without consuming it
+	 */
+	private static class PeekingIterator<T> {
+		private final Iterator<T> iterator;
+		private T next;
+		
+		PeekingIterator(Iterator<T> iterator) {
+			this.iterator = iterator;
+			this.next = iterator.hasNext() ? iterator.next() : null;
+		}
+		
+		boolean hasNext() {
+			return next != null;
+		}
+		
+		T peek() {
+			return next;
+		}
+		
+		T next() {
+			T current = next;
+			next = iterator.hasNext() ? iterator.next() : null;
+			return current;
+		}
+	}
+		
+	/********************
+	 * 					*
+	 *  PHOTO STORAGE   *
+	 * 					*
+	 ********************/
+	
+	/**
+	 * HBase photo column names
+	 */
+	private static byte[] COL_PHOTO_VALUE = "value".getBytes();
+	private static byte[] COL_PHOTO_TITLE = "title".getBytes();
+	private static byte[] COL_PHOTO_DATE = "date".getBytes();
+	private static byte[] COL_PHOTO_THUMBNAIL = "thumb".getBytes();
+	private static byte[] COL_PHOTO_MEDIUM = "medium".getBytes();
+	private static byte[] COL_PHOTO_PHASH = "phash".getBytes();
+	
+	/**
+	 * Set instead of the value column when the original is stored in chunks,
+	 * holding the original's length
+	 */
+	private static byte[] COL_PHOTO_LENGTH = "length".getBytes();
+	
+	/**
+	 * @param size
+	 * @return the column holding the photo's contents in the given size
+	 */
+	private static byte[] columnFor(Photo.Size size) {
+		switch (size) {
+		case THUMBNAIL:
+			return COL_PHOTO_THUMBNAIL;
+		case MEDIUM:
+			return COL_PHOTO_MEDIUM;
+		default:
+			return COL_PHOTO_VALUE;
+		}
+	}
+	
+	/**
+	 * @param photo
+	 * @param chunked whether the original is stored in chunks rather than inline
+	 * @return an HBase Put opject representation of a photo
+	 */
+	private Put photoToPut(Photo photo, boolean chunked) {
+		Put put = new Put(getPhotoKey(photo.getImageHash(), photo.getDate()));
+		if (chunked) {
+			put.add(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_LENGTH, Bytes.toBytes(photo.getContents().length));
+		} else {
+			put.add(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_VALUE, photo.getContents());
+		}
+		put.add(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_TITLE, photo.getTitle().getBytes());
+		put.add(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_DATE, Bytes.toBytes(photo.getDate()));
+		for (Photo.Size size : Photo.Size.values()) {
+			byte[] derivative = size.isDerivative() ? photo.getContents(size) : null;
+			if (derivative != null) put.add(COLUMN_FAMILY[0].getBytes(), columnFor(size), derivative);
+		}
+		if (photo.getPerceptualHash() != null) {
+			put.add(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_PHASH, Bytes.toBytes(photo.getPerceptualHash()));
+		}
+		return put;
+	}
+	
+	/**
+	 * Convert a HBase Result to a Photo
+	 * @param row
+	 * @param value the photo's original contents
+	 * @return
+	 */
+	private Photo readPhoto(Result row, byte[] value) {
+		byte[] title = row.getValue(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_TITLE);
+		Long date = Bytes.toLong(row.getValue(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_DATE));
+		// The hash is part of the key, no need to digest the contents again
+		String hash = hashOfKey(row.getRow());
+		Photo photo = new Photo(Bytes.toString(title), value, hash, date);
+		for (Photo.Size size : Photo.Size.values()) {
+			byte[] derivative = size.isDerivative() ? row.getValue(COLUMN_FAMILY[0].getBytes(), columnFor(size)) : null;
+			if (derivative != null) photo.setContents(size, derivative);
+		}
+		byte[] phash = row.getValue(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_PHASH);
+		if (phash != null) photo.setPerceptualHash(Bytes.toLong(phash));
+		return photo;
+	}
+	
+	/**
+	 * Convert a HBase Result projected on the photo title to a PhotoInfo
+	 * @param row
+	 * @return
+	 */
+	private PhotoInfo readPhotoInfo(Result row) {
+		byte[] key = row.getRow();
+		byte[] title = row.getValue(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_TITLE);
+		Long date = dateOfKey(key);
+		String hash = hashOfKey(key);
+		return new PhotoInfo(key, hash, Bytes.toString(title), date);
+	}
+	
+	/**
+	 * Construct a key for the photo table. The key' length is 32-bytes 
+	 * from which the first 8 are the reverse timestamp and the next 16
+	 * are the photo's MD5 hash id.
+	 * 
+	 * With salting enabled the key is prefixed by a bucket byte derived
+	 * from the hash, spreading consecutive uploads over all buckets.
+	 *  
+	 * @param photo
+	 * @return
+	 */
+	@Override
+	public byte[] getPhotoKey(String hashId, Long date) {
+		assert date != null;
+		
+		long invTime = Long.MAX_VALUE - date;
+		byte[] hash = hashId.getBytes();
+		
+		int offset = saltBuckets == 0 ? 0 : 1;
+		byte[] key = new byte[offset + KEY_LENGTH];
+		if (offset > 0) key[0] = (byte) (Integer.parseInt(hashId.substring(0, 2), 16) % saltBuckets);
+		Bytes.putLong(key, offset, invTime);
+		Bytes.putBytes(key, offset + 8, hash, 0, 32);
+		return key;
+	}
+	
+	/**
+	 * @param photoKey
+	 * @return the date encoded in a photo key
+	 */
+	private Long dateOfKey(byte[] photoKey) {
+		return Long.MAX_VALUE - Bytes.toLong(photoKey, saltBuckets == 0 ? 0 : 1);
+	}
+	
+	/**
+	 * @param photoKey
+	 * @return the image hash encoded in a photo key
+	 */
+	private String hashOfKey(byte[] photoKey) {
+		return Bytes.toString(photoKey, (saltBuckets == 0 ? 0 : 1) + 8, 32);
+	}
+	
+	
+	/*********************
+	 * 					 *
+	 *  LARGE OBJECTS	 *
+	 *					 *  					
+	 *********************/
+	
+	/**
+	 * Originals above the inline limit are split in chunk rows, keyed by the
+	 * photo key followed by the chunk's index
+	 */
+	private static byte[] COL_CHUNK_DATA = "data".getBytes();
+	
+	/**
+	 * @param photoKey
+	 * @param index
+	 * @return the key of a chunk of a photo's original
+	 */
+	private static byte[] chunkKey(byte[] photoKey, int index) {
+		return Bytes.add(photoKey, Bytes.toBytes(index));
+	}
+	
+	/**
+	 * @param key
+	 * @param contents
+	 * @throws IOException
+	 */
+	private void writeChunks(byte[] key, byte[] contents) throws IOException {
+		HTableInterface table = tablePool.getTable(CHUNK_TABLE);
+		try {
+			// One Put per chunk keeps every RPC within the client's size limits
+			for (int index = 0, offset = 0; offset < contents.length; index++, offset += chunkBytes) {
+				Put put = new Put(chunkKey(key, index));
+				put.add(COLUMN_FAMILY[0].getBytes(), COL_CHUNK_DATA,
+						Arrays.copyOfRange(contents, offset, Math.min(contents.length, offset + chunkBytes)));
+				table.put(put);
+			}
+		} finally {
+			table.close();
+		}
+	}
+	
+	/**
+	 * Remove the chunks of an original whose photo row could not be written,
+	 * found with a scan of their keys. Failures are only logged, the chunks are
+	 * rewritten by the next upload of the photo.
+	 * @param key
+	 */
+	private void deleteChunks(byte[] key) {
+		Scan scan = new Scan(chunkKey(key, 0), chunkKey(key, Integer.MAX_VALUE));
+		scan.setFilter(new KeyOnlyFilter());
+		
+		HTableInterface table = tablePool.getTable(CHUNK_TABLE);
+		try {
+			List<Delete> deletes = new ArrayList<Delete>();
+			ResultScanner scanner = table.getScanner(scan);
+			try {
+				for (Result chunk : scanner) deletes.add(new Delete(chunk.getRow()));
+			} finally {
+				scanner.close();
+			}
+			if (!deletes.isEmpty()) table.delete(deletes);
+		} catch (IOException e) {
+			log.error("Could not delete the chunks of photo " + Bytes.toStringBinary(key), e);
+		} finally {
+			try {
+				table.close();
+			} catch (IOException e) {
+				log.error("", e);
+			}
+		}
+	}
+	
+	/**
+	 * Stream the chunks of a photo's original
+	 * @param key
+	 * @return a stream to close once read
+	 * @throws IOException
+	 */
+	public InputStream openChunks(byte[] key) throws IOException {
+		Scan scan = new Scan(chunkKey(key, 0), chunkKey(key, Integer.MAX_VALUE));
+		scan.addColumn(COLUMN_FAMILY[0].getBytes(), COL_CHUNK_DATA);
+		// A couple of chunks per RPC, they are large
+		scan.setCaching(2);
+		scan.setCacheBlocks(false);
+		
+		HTableInterface table = tablePool.getTable(CHUNK_TABLE);
+		try {
+			return new ChunkedInputStream(table, table.getScanner(scan), COLUMN_FAMILY[0].getBytes(), COL_CHUNK_DATA);
+		} catch (IOException e) {
+			table.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @param row a photo row with its value or length column
+	 * @return the original contents, inline or reassembled from their chunks
+	 * @throws IOException
+	 */
+	private byte[] readOriginal(Result row) throws IOException {
+		byte[] value = row.getValue(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_VALUE);
+		byte[] length = row.getValue(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_LENGTH);
+		if (value != null || length == null) return value;
+		
+		// The length is known, so the chunks are read straight into their final array
+		value = new byte[Bytes.toInt(length)];
+		DataInputStream in = new DataInputStream(openChunks(row.getRow()));
+		try {
+			in.readFully(value);
+		} catch (EOFException e) {
+			throw new IOException("Missing chunks of photo " + Bytes.toStringBinary(row.getRow()));
+		} finally {
+			in.close();
+		}
+		return value;
+	}
+	
+	/*********************
+	 * 					 *
+	 *  SIMILARITY INDEX *
+	 *					 *  					
+	 *********************/
+	
+	/**
+	 * Multi-index of perceptual hashes. Each chunk of a hash has a row keyed by
+	 * the chunk's position and value, with a column per photo whose hash has that
+	 * chunk, named by the photo key and holding the whole hash. A lookup reads
+	 * the rows of the chunk values around each chunk of the searched hash with a
+	 * single multi-Get, and keeps the photos within the distance.
+	 */
+	private static byte[] similarityRow(int index, int chunk) {
+		return new byte[] {(byte) index, (byte) (chunk >>> 8), (byte) chunk};
+	}
+	
+	/**
+	 * @param photoKey
+	 * @param perceptualHash
+	 * @throws IOException
+	 */
+	private void indexPerceptualHash(byte[] photoKey, long perceptualHash) throws IOException {
+		List<Put> puts = new ArrayList<Put>(PerceptualHash.CHUNKS);
+		for (int i = 0; i < PerceptualHash.CHUNKS; i++) {
+			Put put = new Put(similarityRow(i, PerceptualHash.chunk(perceptualHash, i)));
+			put.add(COLUMN_FAMILY[0].getBytes(), photoKey, Bytes.toBytes(perceptualHash));
+			puts.add(put);
+		}
+		
+		HTableInterface table = tablePool.getTable(SIMILARITY_TABLE);
+		try {
+			table.put(puts);
+		} finally {
+			table.close();
+		}
+	}
+	
+	@Override
+	public List<byte[]> findSimilar(long perceptualHash, int maxDistance) throws IOException {
+		int radius = PerceptualHash.probeRadius(maxDistance);
+		List<Get> gets = new ArrayList<Get>();
+		for (int i = 0; i < PerceptualHash.CHUNKS; i++) {
+			for (int chunk : PerceptualHash.chunksWithin(PerceptualHash.chunk(perceptualHash, i), radius)) {
+				gets.add(new Get(similarityRow(i, chunk)));
+			}
+		}
+		
+		Result[] rows;
+		HTableInterface table = tablePool.getTable(SIMILARITY_TABLE);
+		try {
+			rows = table.get(gets);
+		} finally {
+			table.close();
+		}
+		
+		// A photo shows up once per chunk it shares
+		Map<String, SimilarPhoto> matches = new HashMap<String, SimilarPhoto>();
+		for (Result row : rows) {
+			if (row.isEmpty()) continue;
+			for (KeyValue kv : row.raw()) {
+				int distance = PerceptualHash.distance(perceptualHash, Bytes.toLong(kv.getValue()));
+				if (distance > maxDistance) continue;
+				byte[] photoKey = kv.getQualifier();
+				matches.put(Bytes.toStringBinary(photoKey), new SimilarPhoto(photoKey, distance));
+			}
+		}
+		return SimilarPhoto.closestFirst(matches.values());
+	}
+	
+	
+	/*********************
+	 * 					 *
+	 *  TEXT INDEX		 *
+	 *					 *  					
+	 *********************/
+	
+	/**
+	 * Inverted index of titles and comments. Each term has a row with a column
+	 * per title or comment holding it, named by the photo key followed by the
+	 * inverse date of the comment, nothing for the title, and holding the weight
+	 * of the term in it. Postings are plain puts, so a whole text is indexed
+	 * with one batch and indexing it again changes nothing.
+	 *
+	 * The columns of a term sort by photo key, newest photo first without
+	 * salting. A search reads at most MAX_TERM_POSTINGS of them per term, so a
+	 * term held by a huge number of photos only matches the newest of them
+	 * rather than a row of millions of columns being read and ranked whole.
+	 */
+	private static byte[] TEXT_DOCUMENTS_ROW = {0}; // sorts before every term
+	private static byte[] COL_TEXT_DOCUMENTS = "photos".getBytes();
+	
+	/**
+	 * Terms a prefix is expanded into, at most
+	 */
+	private static int MAX_PREFIX_TERMS = 64;
+	
+	/**
+	 * Postings read per term, at most
+	 */
+	private static int MAX_TERM_POSTINGS = 10000;
+	
+	/**
+	 * @param photoKey
+	 * @param source what of the photo the text is, appended to the photo key
+	 * @param text
+	 * @param weight
+	 * @throws IOException
+	 */
+	private void indexText(byte[] photoKey, byte[] source, String text, int weight) throws IOException {
+		List<Put> puts = postings(photoKey, source, text, weight);
+		if (puts.isEmpty()) return;
+		
+		HTableInterface table = tablePool.getTable(TEXT_INDEX_TABLE);
+		try {
+			table.put(puts);
+		} finally {
+			table.close();
+		}
+	}
+	
+	/**
+	 * @param photoKey
+	 * @param source what of the photo the text is, appended to the photo key
+	 * @param text
+	 * @param weight
+	 * @return the Puts of the postings of the terms of the text
+	 */
+	private List<Put> postings(byte[] photoKey, byte[] source, String text, int weight) {
+		Map<String, Integer> terms = TextIndex.termWeights(text, weight);
+		byte[] posting = Bytes.add(photoKey, source);
+		List<Put> puts = new ArrayList<Put>(terms.size());
+		for (Map.Entry<String, Integer> term : terms.entrySet()) {
+			Put put = new Put(Bytes.toBytes(term.getKey()));
+			put.add(COLUMN_FAMILY[0].getBytes(), posting, Bytes.toBytes((long) term.getValue()));
+			puts.add(put);
+		}
+		return puts;
+	}
+	
+	/**
+	 * Count an indexed photo, for the weighting of rare terms
+	 * @throws IOException
+	 */
+	private void incrementTextDocuments() throws IOException {
+		HTableInterface table = tablePool.getTable(TEXT_INDEX_TABLE);
+		try {
+			table.incrementColumnValue(TEXT_DOCUMENTS_ROW, COLUMN_FAMILY[0].getBytes(), COL_TEXT_DOCUMENTS, 1);
+		} finally {
+			table.close();
+		}
+	}
+	
+	/**
+	 * The rows of the exact terms and the photo count are read with one
+	 * multi-Get, each prefix term with a scan over the terms it prefixes, and
+	 * the titles of the page with another multi-Get.
+	 */
+	@Override
+	public PhotoPage search(String query, String cursor, int pageSize) throws IOException {
+		assert pageSize > 0 : "Empty page requested";
+		
+		int offset = SearchRanking.offsetOf(cursor);
+		List<String> terms = TextIndex.queryTerms(query);
+		if (terms.isEmpty()) return PhotoPage.EMPTY;
+		
+		SearchRanking ranking;
+		HTableInterface table = tablePool.getTable(TEXT_INDEX_TABLE);
+		try {
+			List<Get> gets = new ArrayList<Get>(terms.size() + 1);
+			gets.add(new Get(TEXT_DOCUMENTS_ROW).addColumn(COLUMN_FAMILY[0].getBytes(), COL_TEXT_DOCUMENTS));
+			for (String term : terms) {
+				if (TextIndex.isPrefix(term)) continue;
+				Get get = new Get(Bytes.toBytes(term));
+				get.setMaxResultsPerColumnFamily(MAX_TERM_POSTINGS);
+				gets.add(get);
+			}
+			Result[] rows = table.get(gets);
+			
+			ranking = new SearchRanking(terms.size(), counter(rows[0], COL_TEXT_DOCUMENTS));
+			int row = 1;
+			for (int i = 0; i < terms.size(); i++) {
+				if (TextIndex.isPrefix(terms.get(i))) {
+					scanPrefix(table, Bytes.toBytes(TextIndex.prefixOf(terms.get(i))), i, ranking);
+				} else {
+					addPostings(rows[row++], i, ranking);
+				}
+			}
+		} finally {
+			table.close();
+		}
+		
+		List<byte[]> ranked = ranking.ranked();
+		List<byte[]> page = ranked.subList(Math.min(offset, ranked.size()), Math.min(offset + pageSize, ranked.size()));
+		return new PhotoPage(readPhotoInfos(page), SearchRanking.nextCursor(ranked, offset, pageSize));
+	}
+	
+	/**
+	 * Add the postings of the terms starting with a prefix
+	 * @param table
+	 * @param prefix
+	 * @param queryTerm
+	 * @param ranking
+	 * @throws IOException
+	 */
+	private void scanPrefix(HTableInterface table, byte[] prefix, int queryTerm, SearchRanking ranking) throws IOException {
+		Scan scan = new Scan(prefix, Utils.rowAfterPrefix(prefix));
+		scan.addFamily(COLUMN_FAMILY[0].getBytes());
+		scan.setMaxResultsPerColumnFamily(MAX_TERM_POSTINGS);
+		scan.setCaching(MAX_PREFIX_TERMS);
+		
+		ResultScanner scanner = table.getScanner(scan);
+		try {
+			int terms = 0;
+			for (Result row : scanner) {
+				addPostings(row, queryTerm, ranking);
+				if (++terms == MAX_PREFIX_TERMS) break;
+			}
+		} finally {
+			scanner.close();
+		}
+	}
+	
+	/**
+	 * @param row the row of an index term
+	 * @param queryTerm
+	 * @param ranking
+	 */
+	private void addPostings(Result row, int queryTerm, SearchRanking ranking) {
+		if (row.isEmpty()) return;
+		
+		int keyLength = (saltBuckets == 0 ? 0 : 1) + KEY_LENGTH;
+		List<byte[]> photoKeys = new ArrayList<byte[]>(row.size());
+		List<Long> weights = new ArrayList<Long>(row.size());
+		for (KeyValue kv : row.raw()) {
+			photoKeys.add(Arrays.copyOf(kv.getQualifier(), keyLength));
+			weights.add(Bytes.toLong(kv.getValue()));
+		}
+		ranking.add(queryTerm, photoKeys, weights);
+	}
+	
+	/**
+	 * @param keys
+	 * @return the listing of the photos of the given keys still stored, in order
+	 * @throws IOException
+	 */
+	private List<PhotoInfo> readPhotoInfos(List<byte[]> keys) throws IOException {
+		List<Get> gets = new ArrayList<Get>(keys.size());
+		for (byte[] key : keys) {
+			gets.add(new Get(key).addColumn(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_TITLE));
+		}
+		
+		Result[] rows;
+		HTableInterface table = tablePool.getTable(PHOTO_TABLE);
+		try {
+			rows = table.get(gets);
+		} finally {
+			table.close();
+		}
+		
+		List<PhotoInfo> photos = new ArrayList<PhotoInfo>(rows.length);
+		for (Result row : rows) {
+			if (row.isEmpty()) continue;
+			photoRowsRead.inc();
+			photoBytesRead.add(sizeOf(row));
+			photos.add(readPhotoInfo(row));
+		}
+		return photos;
+	}
+	
+	
+	/*********************
+	 * 					 *
+	 *  HASH INDEX		 *
+	 *					 *  					
+	 *********************/
+	
+	/**
+	 * The hash index maps an image hash to the key of the photo row holding it
+	 */
+	private static byte[] COL_INDEX_KEY = "key".getBytes();
+	
+	/**
+	 * How long a claimed hash may stay without its photo row before another
+	 * writer may take it over, e.g. after the claiming process died
+	 */
+	private static long CLAIM_TIMEOUT = 5 * 60 * 1000;
+	
+	/**
+	 * Atomically claim an image hash for the given photo key
+	 * @param imageHash
+	 * @param key
+	 * @return true if the hash was free and is now mapped to the key
+	 * @throws IOException
+	 */
+	private boolean claimHash(String imageHash, byte[] key) throws IOException {
+		byte[] row = imageHash.getBytes();
+		Put put = new Put(row);
+		put.add(COLUMN_FAMILY[0].getBytes(), COL_INDEX_KEY, key);
+		
+		HTableInterface table = tablePool.getTable(HASH_INDEX_TABLE);
+		try {
+			if (table.checkAndPut(row, COLUMN_FAMILY[0].getBytes(), COL_INDEX_KEY, null, put)) return true;
+			
+			// Taken, unless the claim is stale and its photo was never written
+			Get get = new Get(row).addColumn(COLUMN_FAMILY[0].getBytes(), COL_INDEX_KEY);
+			KeyValue claim = table.get(get).getColumnLatest(COLUMN_FAMILY[0].getBytes(), COL_INDEX_KEY);
+			if (claim == null) return false;
+			if (System.currentTimeMillis() - claim.getTimestamp() < CLAIM_TIMEOUT) return false;
+			if (photoExists(claim.getValue())) return false;
+			
+			log.warn("Taking over stale hash index entry for {}", imageHash);
+			return table.checkAndPut(row, COLUMN_FAMILY[0].getBytes(), COL_INDEX_KEY, claim.getValue(), put);
+		} finally {
+			table.close();
+		}
+	}
 	
-	public HBaseStorage() {
-		log.info("Opening HBaseStorage");
-		this.configuration = HBaseConfiguration.create();
-		photoPool = new HTablePool(configuration, Integer.MAX_VALUE);
-		commentPool = new HTablePool(configuration, Integer.MAX_VALUE);
-		
+	/**
+	 * Remove the claim of a hash, if it still points to the given key
+	 * @param imageHash
+	 * @param key
+	 */
+	private void releaseHash(String imageHash, byte[] key) {
+		byte[] row = imageHash.getBytes();
+		Delete delete = new Delete(row);
+		HTableInterface table = tablePool.getTable(HASH_INDEX_TABLE);
 		try {
-			Utils.createHTable(PHOTO_TABLE, COLUMN_FAMILY, configuration);
-			Utils.createHTable(COMMENT_TABLE, COLUMN_FAMILY, configuration);
+			table.checkAndDelete(row, COLUMN_FAMILY[0].getBytes(), COL_INDEX_KEY, key, delete);
 		} catch (IOException e) {
-			log.error("HBaseStorage init error");
-			throw new RuntimeException(e);
+			// A stale claim is taken over by the next writer of the same hash
+			log.error("Could not release hash " + imageHash, e);
+		} finally {
+			try {
+				table.close();
+			} catch (IOException e) {
+				log.error("", e);
+			}
 		}
 	}
 	
-	@Override
-	public boolean store(Photo photo) throws IOException {
-		assert Utils.tableExists(PHOTO_TABLE, configuration) : "Photo table does not exist";
-		
-		HTableInterface table = photoPool.getTable(PHOTO_TABLE);
+	/**
+	 * @param imageHash
+	 * @return the photo key the hash is mapped to or null
+	 * @throws IOException
+	 */
+	private byte[] getIndexedKey(String imageHash) throws IOException {
+		Get get = new Get(imageHash.getBytes()).addColumn(COLUMN_FAMILY[0].getBytes(), COL_INDEX_KEY);
+		HTableInterface table = tablePool.getTable(HASH_INDEX_TABLE);
 		try {
-			table.put(photoToPut(photo));
+			return table.get(get).getValue(COLUMN_FAMILY[0].getBytes(), COL_INDEX_KEY);
 		} finally {
-			log.debug("Returning table to pool");
 			table.close();
 		}
-		return true;
 	}
-
-	@Override
-	public Photo getPhoto(byte[] key) throws IOException {
-		assert key != null : "Null key";
-		assert Utils.tableExists(PHOTO_TABLE, configuration) : "Photo table does not exist!";
-
-		Get get = new Get(key);
-		HTableInterface table = photoPool.getTable(PHOTO_TABLE);
+	
+	/**
+	 * @param key
+	 * @return true if a photo row exists for the key
+	 * @throws IOException
+	 */
+	private boolean photoExists(byte[] key) throws IOException {
+		Get get = new Get(key).addColumn(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_TITLE);
+		HTableInterface table = tablePool.getTable(PHOTO_TABLE);
 		try {
-			Result row = table.get(get);
-			if (row.isEmpty()) {
-				log.debug("Got no entry for {}", key);
-				return null;
-			}
-
-			Photo photo = readPhoto(row);
-			return photo;
+			return table.exists(get);
+		} finally {
+			table.close();
 		}
-		finally {
-			log.debug("Returning table to pool after txn get");
+	}
+	
+	/*********************
+	 * 					 *
+	 *  COUNTERS		 *
+	 *					 *  					
+	 *********************/
+	
+	/**
+	 * Counters of a photo live in a row of the counter table keyed like the
+	 * photo, rather than in the photo row, so incrementing them never creates
+	 * a photo row
+	 */
+	private static byte[] COL_COUNTER_COMMENTS = "comments".getBytes();
+	private static byte[] COL_COUNTER_POSITIVE = "positive".getBytes();
+	private static byte[] COL_COUNTER_NEGATIVE = "negative".getBytes();
+	private static byte[] COL_COUNTER_NEUTRAL = "neutral".getBytes();
+	
+	/**
+	 * @param sentiment
+	 * @return the counter of the comments of a photo with the given sentiment
+	 */
+	private static byte[] counterFor(Comment.Sentiment sentiment) {
+		switch (sentiment) {
+		case POSITIVE:
+			return COL_COUNTER_POSITIVE;
+		case NEGATIVE:
+			return COL_COUNTER_NEGATIVE;
+		default:
+			return COL_COUNTER_NEUTRAL;
+		}
+	}
+	
+	/**
+	 * Atomically add to a counter of a photo
+	 * @param photoKey
+	 * @param column
+	 * @param amount
+	 * @return the new value of the counter
+	 * @throws IOException
+	 */
+	private long incrementCounter(byte[] photoKey, byte[] column, long amount) throws IOException {
+		HTableInterface table = tablePool.getTable(COUNTER_TABLE);
+		try {
+			return table.incrementColumnValue(photoKey, COLUMN_FAMILY[0].getBytes(), column, amount);
+		} finally {
 			table.close();
 		}
 	}
-
+	
+	/**
+	 * Read the same counter of several photos with one multi-Get
+	 * @param photoKeys
+	 * @param column
+	 * @return the counters in the order of the keys, 0 for photos without one
+	 * @throws IOException
+	 */
+	private long[] readCounters(List<byte[]> photoKeys, byte[] column) throws IOException {
+		List<Get> gets = new ArrayList<Get>(photoKeys.size());
+		for (byte[] key : photoKeys) {
+			Get get = new Get(key);
+			get.addColumn(COLUMN_FAMILY[0].getBytes(), column);
+			gets.add(get);
+		}
+		
+		Result[] rows;
+		HTableInterface table = tablePool.getTable(COUNTER_TABLE);
+		try {
+			rows = table.get(gets);
+		} finally {
+			table.close();
+		}
+		
+		long[] counters = new long[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			byte[] value = rows[i].getValue(COLUMN_FAMILY[0].getBytes(), column);
+			if (value != null) counters[i] = Bytes.toLong(value);
+		}
+		return counters;
+	}
+	
 	@Override
-	public Iterable<Photo> getPhotos() {
-		return new Iterable<Photo>() {
-			long numResults = 20;
-					
-			@Override
-			public Iterator<Photo> iterator() {
-				final Scan scan = new Scan();
-				
-				try {
-					return new Iterator<Photo>() {
-						// Don't use HTablePool to get table to avoid synchronisation
-						// issues with other storing threads
-						HTableInterface table = new HTable(configuration, PHOTO_TABLE);
-						ResultScanner scanner = table.getScanner(scan);
-						long count = 0;
-						Photo current = getNext();
-						
-						@Override
-						public void remove() {
-							throw new UnsupportedOperationException();
-						}
-						
-						@Override
-						public Photo next() {
-							Photo cur = current;
-							current = getNext();
-							if (current == null) {
-								try {
-									scanner.close();
-									table.close();
-								} catch (IOException e) {
-									log.error("", e);
-								}
-							}
-							return cur;
-						}
-						
-						@Override
-						public boolean hasNext() {
-							if (current == null) return false;
-							return true;
-						}
-						
-						private Photo getNext() {
-							if (count >= numResults) return null;
-							
-							 try {
-								Result row = scanner.next();
-								if (row == null) return null;
-								Photo result = readPhoto(row);
-								count++;
-								return result;
-							} catch (IOException e) {
-								log.error("Photo read error", e);
-							}
-							return null;
-						}
-					};
-				} catch (IOException e) {
-					throw new RuntimeException(e);
+	public long[] getCommentCounts(List<byte[]> photoKeys) throws IOException {
+		if (photoKeys.isEmpty()) return new long[0];
+		return readCounters(photoKeys, COL_COUNTER_COMMENTS);
+	}
+	
+	/**
+	 * The labels are written with one multi-Put. The aggregates of each photo
+	 * are added up for the whole batch first and incremented with a single
+	 * Increment per photo.
+	 */
+	@Override
+	public void storeSentiments(List<Comment> comments) throws IOException {
+		List<Put> puts = new ArrayList<Put>(comments.size());
+		Map<String, long[]> totals = new LinkedHashMap<String, long[]>();
+		Map<String, byte[]> photoKeys = new HashMap<String, byte[]>();
+		for (Comment comment : comments) {
+			Photo parent = comment.getParent();
+			Put put = new Put(getCommentKey(parent.getImageHash(), comment.getDate()));
+			put.add(COLUMN_FAMILY[0].getBytes(), COL_COMMENT_SENTIMENT, Bytes.toBytes(comment.getSentiment().name()));
+			puts.add(put);
+			
+			byte[] photoKey = getPhotoKey(parent.getImageHash(), parent.getDate());
+			String id = Bytes.toStringBinary(photoKey);
+			long[] total = totals.get(id);
+			if (total == null) {
+				total = new long[Comment.Sentiment.values().length];
+				totals.put(id, total);
+				photoKeys.put(id, photoKey);
+			}
+			total[comment.getSentiment().ordinal()]++;
+		}
+		
+		HTableInterface table = tablePool.getTable(COMMENT_TABLE);
+		try {
+			table.put(puts);
+		} finally {
+			table.close();
+		}
+		
+		table = tablePool.getTable(COUNTER_TABLE);
+		try {
+			for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+				Increment increment = new Increment(photoKeys.get(entry.getKey()));
+				for (Comment.Sentiment sentiment : Comment.Sentiment.values()) {
+					long amount = entry.getValue()[sentiment.ordinal()];
+					if (amount > 0) increment.addColumn(COLUMN_FAMILY[0].getBytes(), counterFor(sentiment), amount);
 				}
+				table.increment(increment);
 			}
-		};
+		} finally {
+			table.close();
+		}
 	}
+	
+	@Override
+	public SentimentSummary getSentiment(byte[] photoKey) throws IOException {
+		Get get = new Get(photoKey);
+		for (Comment.Sentiment sentiment : Comment.Sentiment.values()) {
+			get.addColumn(COLUMN_FAMILY[0].getBytes(), counterFor(sentiment));
+		}
 		
-	/********************
-	 * 					*
-	 *  PHOTO STORAGE   *
-	 * 					*
-	 ********************/
+		Result row;
+		HTableInterface table = tablePool.getTable(COUNTER_TABLE);
+		try {
+			row = table.get(get);
+		} finally {
+			table.close();
+		}
+		if (row.isEmpty()) return SentimentSummary.NONE;
+		return new SentimentSummary(counter(row, COL_COUNTER_POSITIVE), counter(row, COL_COUNTER_NEGATIVE), counter(row, COL_COUNTER_NEUTRAL));
+	}
 	
 	/**
-	 * HBase photo column names
+	 * @param row
+	 * @param column
+	 * @return the value of a counter of the row, 0 if it is not set
 	 */
-	private static byte[] COL_PHOTO_VALUE = "value".getBytes();
-	private static byte[] COL_PHOTO_TITLE = "title".getBytes();
-	private static byte[] COL_PHOTO_DATE = "date".getBytes();
+	private static long counter(Result row, byte[] column) {
+		byte[] value = row.getValue(COLUMN_FAMILY[0].getBytes(), column);
+		return value == null ? 0 : Bytes.toLong(value);
+	}
+	
+	
+	/*********************
+	 * 					 *
+	 *  TIMELINE		 *
+	 *					 *  					
+	 *********************/
 	
 	/**
-	 * @param photo
-	 * @return an HBase Put opject representation of a photo
+	 * Photo counts by date. Each month has a row keyed by its start, with the
+	 * month's count and a column per day keyed by the day's start, so one
+	 * increment counts a photo in both and a scan of a few rows reads any
+	 * range.
 	 */
-	private Put photoToPut(Photo photo) {
-		Put put = new Put(getPhotoKey(photo.getImageHash(), photo.getDate()));
-		put.add(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_VALUE, photo.getContents());
-		put.add(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_TITLE, photo.getTitle().getBytes());
-		put.add(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_DATE, Bytes.toBytes(photo.getDate()));
-		return put;
-	}
+	private static byte[] COL_TIMELINE_MONTH = "month".getBytes();
 	
 	/**
-	 * Convert a HBase Result to a Photo
-	 * @param row
-	 * @return
+	 * @param date the date of a stored photo
+	 * @throws IOException
 	 */
-	private Photo readPhoto(Result row) {
-		byte[] value = row.getValue(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_VALUE);
-		byte[] title = row.getValue(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_TITLE);
-		Long date = Bytes.toLong(row.getValue(COLUMN_FAMILY[0].getBytes(), COL_PHOTO_DATE));
-		Photo photo = new Photo(Bytes.toString(title), value, date);
-		return photo;
+	private void countInTimeline(long date) throws IOException {
+		Increment increment = new Increment(Bytes.toBytes(TimelineBucket.Period.MONTH.startOf(date)));
+		increment.addColumn(COLUMN_FAMILY[0].getBytes(), COL_TIMELINE_MONTH, 1);
+		increment.addColumn(COLUMN_FAMILY[0].getBytes(), Bytes.toBytes(TimelineBucket.Period.DAY.startOf(date)), 1);
+		
+		HTableInterface table = tablePool.getTable(TIMELINE_TABLE);
+		try {
+			table.increment(increment);
+		} finally {
+			table.close();
+		}
 	}
 	
-	/**
-	 * Construct a key for the photo table. The key' length is 32-bytes 
-	 * from which the first 8 are the reverse timestamp and the next 16
-	 * are the photo's MD5 hash id.
-	 *  
-	 * @param photo
-	 * @return
-	 */
 	@Override
-	public byte[] getPhotoKey(String hashId, Long date) {
-		assert date != null;
+	public List<TimelineBucket> getTimeline(Long from, Long to, TimelineBucket.Period period) throws IOException {
+		if (from != null && to != null && from >= to) return new ArrayList<TimelineBucket>();
 		
-		long invTime = Long.MAX_VALUE - date;
-		byte[] hash = hashId.getBytes();
+		// The months holding the range, dates before 1970 would need signed ordering
+		Scan scan = new Scan();
+		if (from != null) scan.setStartRow(Bytes.toBytes(TimelineBucket.Period.MONTH.startOf(Math.max(0, from))));
+		if (to != null) scan.setStopRow(Bytes.toBytes(Math.max(0, to)));
+		scan.addFamily(COLUMN_FAMILY[0].getBytes());
+		scan.setCaching(100);
 		
-		byte[] key = new byte[KEY_LENGTH];
-		Bytes.putLong(key, 0, invTime);
-		Bytes.putBytes(key, 8, hash, 0, 32);
-		return key;
+		List<TimelineBucket> buckets = new ArrayList<TimelineBucket>();
+		HTableInterface table = tablePool.getTable(TIMELINE_TABLE);
+		ResultScanner scanner = table.getScanner(scan);
+		try {
+			for (Result row : scanner) {
+				if (period == TimelineBucket.Period.MONTH) {
+					addBucket(buckets, period, Bytes.toLong(row.getRow()), counter(row, COL_TIMELINE_MONTH), from, to);
+					continue;
+				}
+				for (KeyValue kv : row.raw()) {
+					if (Bytes.equals(kv.getQualifier(), COL_TIMELINE_MONTH)) continue;
+					addBucket(buckets, period, Bytes.toLong(kv.getQualifier()), Bytes.toLong(kv.getValue()), from, to);
+				}
+			}
+		} finally {
+			scanner.close();
+			table.close();
+		}
+		Collections.reverse(buckets);
+		return buckets;
+	}
+	
+	private static void addBucket(List<TimelineBucket> buckets, TimelineBucket.Period period, long start, long count, Long from, Long to) {
+		if (count == 0 || (from != null && start < from) || (to != null && start >= to)) return;
+		buckets.add(new TimelineBucket(period, start, count));
 	}
 	
 	
@@ -232,6 +1458,11 @@ public class HBaseStorage implements IStorage {
 	private static byte[] COL_COMMENT_BODY = "body".getBytes();
 	private static byte[] COL_COMMENT_DATE = "date".getBytes();
 	
+	/**
+	 * Set once the comment is scored, holding the name of its sentiment
+	 */
+	private static byte[] COL_COMMENT_SENTIMENT = "sentiment".getBytes();
+	
 	/**
 	 * @param photo
 	 * @return an HBase Put opject representation of a photo
@@ -245,21 +1476,34 @@ public class HBaseStorage implements IStorage {
 	}
 	
 	/**
-	 * Convert a HBase Result to a Photo
+	 * Convert a HBase Result to a Comment
 	 * @param row
+	 * @param parent the already loaded parent or null to reference it lazily
 	 * @return
-	 * @throws IOException 
 	 */
-	private Comment readComment(Result row) throws IOException {
+	private Comment readComment(Result row, Photo parent) {
 		byte[] body = row.getValue(COLUMN_FAMILY[0].getBytes(), COL_COMMENT_BODY);
-		byte[] photoKey = row.getValue(COLUMN_FAMILY[0].getBytes(), COL_COMMENT_PARENT);
 		Long date = Bytes.toLong(row.getValue(COLUMN_FAMILY[0].getBytes(), COL_COMMENT_DATE));
 		
-		Photo parent = getPhoto(photoKey);
+		if (parent == null) {
+			parent = photoReference(row.getValue(COLUMN_FAMILY[0].getBytes(), COL_COMMENT_PARENT));
+		}
 		Comment comment = new Comment(Bytes.toString(body), parent, date);
+		byte[] sentiment = row.getValue(COLUMN_FAMILY[0].getBytes(), COL_COMMENT_SENTIMENT);
+		if (sentiment != null) comment.setSentiment(Comment.Sentiment.valueOf(Bytes.toString(sentiment)));
 		return comment;
 	}
 	
+	/**
+	 * @param photoKey
+	 * @return a Photo carrying only the hash and date encoded in its key
+	 */
+	private Photo photoReference(byte[] photoKey) {
+		Long date = dateOfKey(photoKey);
+		String hash = hashOfKey(photoKey);
+		return new Photo(hash, date);
+	}
+	
 	/**
 	 * Construct a key for the photo table. The key' length is 32-bytes 
 	 * from which the first 32 are the photo's hash id and the last
@@ -278,23 +1522,111 @@ public class HBaseStorage implements IStorage {
 		return key;
 	}
 	
+	/**
+	 * Without write-behind, the comment is written with a checkAndPut, which
+	 * leaves a stored comment of the same photo and date as it is. With
+	 * write-behind enabled, the comment is committed together with those of
+	 * concurrent callers and this returns once its batch is written; the Puts
+	 * of a batch are blind, so such a comment is overwritten. Comments are
+	 * counted and indexed once written, with one increment per photo and one
+	 * multi-Put to the index for a whole batch, so a failure in between leaves
+	 * the counters and the index behind.
+	 */
 	@Override
-	public void store(Comment comment) throws IOException {
-		assert Utils.tableExists(PHOTO_TABLE, configuration) : "Photo table does not exist";
+	public boolean store(Comment comment) throws IOException {
+		if (commentBatcher != null) {
+			try {
+				commentBatcher.submit(comment, commentToPut(comment)).get(COMMENT_COMMIT_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (ExecutionException e) {
+				throw new IOException("Comment write failed", e.getCause());
+			} catch (TimeoutException e) {
+				throw new IOException("Comment write timed out");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while writing a comment");
+			}
+		} else {
+			Put put = commentToPut(comment);
+			HTableInterface table = tablePool.getTable(COMMENT_TABLE);
+			try {
+				if (!table.checkAndPut(put.getRow(), COLUMN_FAMILY[0].getBytes(), COL_COMMENT_DATE, null, put)) {
+					log.debug("A comment of the same date is already stored");
+					return false;
+				}
+			} finally {
+				log.debug("Returning table to pool");
+				table.close();
+			}
+			commentsWritten(Collections.singletonList(comment));
+		}
+		return true;
+	}
+	
+	/**
+	 * Count and index written comments
+	 * @param comments
+	 */
+	private void commentsWritten(List<Comment> comments) {
+		countComments(comments);
+		indexComments(comments);
+	}
+	
+	/**
+	 * Add the postings of stored comments to the text index
+	 * @param comments
+	 */
+	private void indexComments(List<Comment> comments) {
+		List<Put> puts = new ArrayList<Put>();
+		for (Comment comment : comments) {
+			Photo parent = comment.getParent();
+			puts.addAll(postings(getPhotoKey(parent.getImageHash(), parent.getDate()),
+					Bytes.toBytes(Long.MAX_VALUE - comment.getDate()), comment.getContents(), 1));
+		}
+		if (puts.isEmpty()) return;
 		
-		HTableInterface table = photoPool.getTable(COMMENT_TABLE);
 		try {
-			table.put(commentToPut(comment));
-		} finally {
-			log.debug("Returning table to pool");
-			table.close();
+			HTableInterface table = tablePool.getTable(TEXT_INDEX_TABLE);
+			try {
+				table.put(puts);
+			} finally {
+				table.close();
+			}
+		} catch (IOException e) {
+			// The comments are stored, they will only not be found by searches
+			log.error("Could not index " + comments.size() + " comments", e);
+		}
+	}
+	
+	/**
+	 * Add stored comments to the counters of their photos, summed up per photo
+	 * @param comments
+	 */
+	private void countComments(List<Comment> comments) {
+		Map<String, Long> totals = new LinkedHashMap<String, Long>();
+		Map<String, byte[]> photoKeys = new HashMap<String, byte[]>();
+		for (Comment comment : comments) {
+			Photo parent = comment.getParent();
+			byte[] photoKey = getPhotoKey(parent.getImageHash(), parent.getDate());
+			String id = Bytes.toStringBinary(photoKey);
+			Long total = totals.get(id);
+			totals.put(id, total == null ? 1 : total + 1);
+			photoKeys.put(id, photoKey);
+		}
+		
+		for (Map.Entry<String, Long> total : totals.entrySet()) {
+			try {
+				incrementCounter(photoKeys.get(total.getKey()), COL_COUNTER_COMMENTS, total.getValue());
+			} catch (IOException e) {
+				// The comments are stored, only their count is short
+				log.error("Could not count " + total.getValue() + " comments of " + total.getKey(), e);
+			}
 		}
 	}
 	
 	@Override
 	public Iterable<Comment> getComments(final Photo p) {
 		return new Iterable<Comment>() {
-			long numResults = 20;
+			long numResults = COMMENTS_PER_PHOTO;
 			byte[] startRow = getCommentKey(p.getImageHash(), Long.MAX_VALUE);
 			byte[] stopRow = getCommentKey(p.getImageHash(), 0L);
 					
@@ -303,12 +1635,12 @@ public class HBaseStorage implements IStorage {
 				final Scan scan = new Scan();
 				scan.setStartRow(startRow);
 				scan.setStopRow(stopRow);
+				scan.setCaching((int) numResults);
 				
 				try {
 					return new Iterator<Comment>() {
-						// Don't use HTablePool to get table to avoid synchronisation
-						// issues with other storing threads
-						HTableInterface table = new HTable(configuration, COMMENT_TABLE);
+						// Pooled tables are handed to one borrower at a time
+						HTableInterface table = tablePool.getTable(COMMENT_TABLE);
 						ResultScanner scanner = table.getScanner(scan);
 						long count = 0;
 						Comment current = getNext();
@@ -345,7 +1677,9 @@ public class HBaseStorage implements IStorage {
 							 try {
 								Result row = scanner.next();
 								if (row == null) return null;
-								Comment result = readComment(row);
+								commentRowsRead.inc();
+								commentBytesRead.add(sizeOf(row));
+								Comment result = readComment(row, p);
 								count++;
 								return result;
 							} catch (IOException e) {
@@ -360,4 +1694,68 @@ public class HBaseStorage implements IStorage {
 			}
 		};
 	}
+	
+	/**
+	 * Reads the comments of all the photos with a single scan. Comment keys
+	 * start with the hash of their photo, so the scan spans from the smallest to
+	 * the largest hash and a fuzzy row filter makes the region servers seek from
+	 * one photo's comments to the next rather than read the rows in between.
+	 * Once a photo has all its comments the scan is reopened after them.
+	 */
+	@Override
+	public Map<byte[], List<Comment>> getComments(List<Photo> photos) throws IOException {
+		Map<byte[], List<Comment>> result = new TreeMap<byte[], List<Comment>>(Bytes.BYTES_COMPARATOR);
+		if (photos.isEmpty()) return result;
+		
+		TreeMap<byte[], Photo> byHash = new TreeMap<byte[], Photo>(Bytes.BYTES_COMPARATOR);
+		Map<byte[], List<Comment>> commentsByHash = new TreeMap<byte[], List<Comment>>(Bytes.BYTES_COMPARATOR);
+		List<Pair<byte[], byte[]>> fuzzyKeys = new ArrayList<Pair<byte[], byte[]>>();
+		for (Photo photo : photos) {
+			byte[] hash = photo.getImageHash().getBytes();
+			if (byHash.put(hash, photo) != null) continue;
+			List<Comment> photoComments = new ArrayList<Comment>();
+			commentsByHash.put(hash, photoComments);
+			result.put(getPhotoKey(photo.getImageHash(), photo.getDate()), photoComments);
+			
+			// The hash must match, the date may be anything
+			byte[] mask = new byte[KEY_LENGTH];
+			Arrays.fill(mask, 32, KEY_LENGTH, (byte) 1);
+			fuzzyKeys.add(new Pair<byte[], byte[]>(getCommentKey(photo.getImageHash(), Long.MAX_VALUE), mask));
+		}
+		
+		byte[] startRow = byHash.firstKey();
+		byte[] stopRow = Utils.rowAfterPrefix(byHash.lastKey());
+		HTableInterface table = tablePool.getTable(COMMENT_TABLE);
+		try {
+			while (startRow != null) {
+				Scan scan = new Scan(startRow, stopRow);
+				scan.setFilter(new FuzzyRowFilter(fuzzyKeys));
+				scan.setCaching(COMMENTS_PER_PHOTO);
+				startRow = null;
+				
+				ResultScanner scanner = table.getScanner(scan);
+				try {
+					for (Result row : scanner) {
+						byte[] hash = Bytes.head(row.getRow(), 32);
+						List<Comment> photoComments = commentsByHash.get(hash);
+						commentRowsRead.inc();
+						commentBytesRead.add(sizeOf(row));
+						photoComments.add(readComment(row, byHash.get(hash)));
+						if (photoComments.size() == COMMENTS_PER_PHOTO) {
+							// Seek past the older comments of the photo
+							byte[] next = Utils.rowAfterPrefix(hash);
+							if (Bytes.compareTo(next, stopRow) < 0) startRow = next;
+							break;
+						}
+					}
+				} finally {
+					scanner.close();
+				}
+			}
+		} finally {
+			log.debug("Returning table to pool after comment scan");
+			table.close();
+		}
+		return result;
+	}
 }
@@ -1,6 +1,9 @@
 package models;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Interface for storing images. Can be backed by a NoSQL db like HBase, or a relational DB,
@@ -12,19 +15,29 @@ import java.io.IOException;
 public interface IStorage {
 
 	/**
-	 * Store an image to the datastore
+	 * Store an image to the datastore. Images are de-duplicated by their hash,
+	 * atomically with respect to concurrent stores of the same image.
 	 * @param photo
-	 * @return true on success
+	 * @return true on success, false if the image is already stored
 	 * @throws IOException 
 	 */
 	public boolean store(Photo photo) throws IOException;
 	
+	/**
+	 * Cheap existence check by image hash, which does not read any image data
+	 * @param imageHash
+	 * @return the key of the stored photo with the given hash or null
+	 * @throws IOException
+	 */
+	public byte[] findPhoto(String imageHash) throws IOException;
+	
 	/**
 	 * Store a comment to the datastore
 	 * @param comment
+	 * @return false if a comment of the same photo and date is already stored, this one is then not written
 	 * @throws IOException 
 	 */
-	public void store(Comment comment) throws IOException;
+	public boolean store(Comment comment) throws IOException;
 	
 	/**
 	 * @param key
@@ -34,9 +47,66 @@ public interface IStorage {
 	public Photo getPhoto(byte[] key) throws IOException;
 	
 	/**
-	 * @return an iterator over photos
+	 * Read only the title and date of a photo, none of its image data
+	 * @param key
+	 * @return the description of a stored photo or null
+	 * @throws IOException
+	 */
+	public PhotoInfo getPhotoInfo(byte[] key) throws IOException;
+	
+	/**
+	 * Read only the contents of a photo in the given size. Implementations
+	 * fall back to the original if the derivative is not available.
+	 * @param key
+	 * @param size
+	 * @return the image bytes or null if the photo does not exist
+	 * @throws IOException
+	 */
+	public byte[] getPhotoContents(byte[] key, Photo.Size size) throws IOException;
+	
+	/**
+	 * Open the contents of a photo in the given size as a stream, which
+	 * storages keeping large originals in parts read a part at a time
+	 * @param key
+	 * @param size
+	 * @return a stream to close once read or null if the photo does not exist
+	 * @throws IOException
+	 */
+	public InputStream openPhotoContents(byte[] key, Photo.Size size) throws IOException;
+	
+	/**
+	 * List photos newest first, one page at a time. Only the photos' metadata
+	 * is read, never their image data.
+	 * @param cursor the cursor of a previous page or null to start from the newest photo
+	 * @param pageSize
+	 * @return a page of at most pageSize photos
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the cursor is malformed
+	 */
+	public PhotoPage listPhotos(String cursor, int pageSize) throws IOException;
+	
+	/**
+	 * List the photos of a range of dates newest first, one page at a time.
+	 * Listing any range costs as much as listing the newest photos.
+	 * @param from the earliest date listed or null for no lower bound
+	 * @param to the date after the latest listed or null for no upper bound
+	 * @param cursor the cursor of a previous page of the range or null to start from its newest photo
+	 * @param pageSize
+	 * @return a page of at most pageSize photos
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the cursor is malformed
+	 */
+	public PhotoPage listPhotos(Long from, Long to, String cursor, int pageSize) throws IOException;
+	
+	/**
+	 * Read the photo counts kept per day and month, without listing photos
+	 * @param from the earliest start of a period read or null for no lower bound
+	 * @param to the start of a period after those read or null for no upper bound
+	 * @param period
+	 * @return the periods starting in the range that have photos, newest first
+	 * @throws IOException
 	 */
-	public Iterable<Photo> getPhotos();
+	public List<TimelineBucket> getTimeline(Long from, Long to, TimelineBucket.Period period) throws IOException;
 
 	/**
 	 * Construct a key for the photo storage. This might be different
@@ -55,7 +125,70 @@ public interface IStorage {
 	
 	/**
 	 * @param p
-	 * @return the comments for a photo
+	 * @return the comments for a photo, all referencing the given instance as their parent
 	 */
 	public Iterable<Comment> getComments(Photo p);
+	
+	/**
+	 * Load the comments of several photos at once, as many per photo as
+	 * {@link #getComments(Photo)} returns
+	 * @param photos
+	 * @return the comments of each photo, newest first, by the key of the photo
+	 * (see {@link #getPhotoKey}); photos without comments map to an empty list.
+	 * The comments reference the given instances as their parents.
+	 * @throws IOException
+	 */
+	public Map<byte[], List<Comment>> getComments(List<Photo> photos) throws IOException;
+	
+	/**
+	 * Read the number of comments of several photos at once, without reading
+	 * the comments
+	 * @param photoKeys
+	 * @return the counts in the order of the given keys
+	 * @throws IOException
+	 */
+	public long[] getCommentCounts(List<byte[]> photoKeys) throws IOException;
+	
+	/**
+	 * Record the sentiment of stored comments and add them to the sentiment
+	 * counts of their photos
+	 * @param comments scored comments
+	 * @throws IOException
+	 */
+	public void storeSentiments(List<Comment> comments) throws IOException;
+	
+	/**
+	 * @param photoKey
+	 * @return the number of scored comments of a photo by sentiment
+	 * @throws IOException
+	 */
+	public SentimentSummary getSentiment(byte[] photoKey) throws IOException;
+	
+	/**
+	 * Find the photos whose perceptual hash is within the given Hamming
+	 * distance of a hash, without comparing against every photo
+	 * @param perceptualHash
+	 * @param maxDistance at most PerceptualHash.MAX_SEARCH_DISTANCE
+	 * @return the keys of the matching photos, closest first
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the distance is too large to search
+	 */
+	public List<byte[]> findSimilar(long perceptualHash, int maxDistance) throws IOException;
+	
+	/**
+	 * Search the titles and comments of the photos with the full text index
+	 * @param query terms, of which a term ending with * matches every term it prefixes
+	 * @param cursor the cursor of the previous page or null for the best matches
+	 * @param pageSize
+	 * @return a page of the photos matching every term of the query, best first
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the cursor is malformed
+	 */
+	public PhotoPage search(String query, String cursor, int pageSize) throws IOException;
+	
+	/**
+	 * Release the resources held by the storage. It is not used after this.
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
 }
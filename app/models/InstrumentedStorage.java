@@ -0,0 +1,287 @@
+package models;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+import utils.Metrics;
+
+/**
+ * An IStorage decorator timing every call to the wrapped storage, as seen by
+ * the application, including any caching underneath. Failed calls are timed
+ * too and also counted apart.
+ *
+ */
+public class InstrumentedStorage implements IStorage {
+
+	private final IStorage storage;
+
+	private final Metrics.Timer storePhoto = timer("storePhoto");
+	private final Metrics.Timer findPhoto = timer("findPhoto");
+	private final Metrics.Timer storeComment = timer("storeComment");
+	private final Metrics.Timer getPhoto = timer("getPhoto");
+	private final Metrics.Timer getPhotoInfo = timer("getPhotoInfo");
+	private final Metrics.Timer getPhotoContents = timer("getPhotoContents");
+	private final Metrics.Timer openPhotoContents = timer("openPhotoContents");
+	private final Metrics.Timer listPhotos = timer("listPhotos");
+	private final Metrics.Timer listPhotoRange = timer("listPhotoRange");
+	private final Metrics.Timer getTimeline = timer("getTimeline");
+	private final Metrics.Timer getComments = timer("getComments");
+	private final Metrics.Timer getCommentCounts = timer("getCommentCounts");
+	private final Metrics.Timer storeSentiments = timer("storeSentiments");
+	private final Metrics.Timer getSentiment = timer("getSentiment");
+	private final Metrics.Timer findSimilar = timer("findSimilar");
+	private final Metrics.Timer search = timer("search");
+	private final Metrics.Counter errors = Metrics.counter("storage_errors_total");
+
+	public InstrumentedStorage(IStorage storage) {
+		this.storage = storage;
+	}
+
+	private static Metrics.Timer timer(String method) {
+		return Metrics.timer("storage_call_seconds", "method", method);
+	}
+
+	/**
+	 * @return the instrumented storage
+	 */
+	public IStorage getStorage() {
+		return storage;
+	}
+
+	@Override
+	public boolean store(Photo photo) throws IOException {
+		long start = storePhoto.start();
+		try {
+			return storage.store(photo);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			storePhoto.stop(start);
+		}
+	}
+
+	@Override
+	public byte[] findPhoto(String imageHash) throws IOException {
+		long start = findPhoto.start();
+		try {
+			return storage.findPhoto(imageHash);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			findPhoto.stop(start);
+		}
+	}
+
+	@Override
+	public boolean store(Comment comment) throws IOException {
+		long start = storeComment.start();
+		try {
+			return storage.store(comment);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			storeComment.stop(start);
+		}
+	}
+
+	@Override
+	public Photo getPhoto(byte[] key) throws IOException {
+		long start = getPhoto.start();
+		try {
+			return storage.getPhoto(key);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			getPhoto.stop(start);
+		}
+	}
+
+	@Override
+	public PhotoInfo getPhotoInfo(byte[] key) throws IOException {
+		long start = getPhotoInfo.start();
+		try {
+			return storage.getPhotoInfo(key);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			getPhotoInfo.stop(start);
+		}
+	}
+
+	@Override
+	public byte[] getPhotoContents(byte[] key, Photo.Size size) throws IOException {
+		long start = getPhotoContents.start();
+		try {
+			return storage.getPhotoContents(key, size);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			getPhotoContents.stop(start);
+		}
+	}
+
+	/**
+	 * Only opening the stream is measured, reading it is up to the caller
+	 */
+	@Override
+	public InputStream openPhotoContents(byte[] key, Photo.Size size) throws IOException {
+		long start = openPhotoContents.start();
+		try {
+			return storage.openPhotoContents(key, size);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			openPhotoContents.stop(start);
+		}
+	}
+
+	@Override
+	public PhotoPage listPhotos(String cursor, int pageSize) throws IOException {
+		long start = listPhotos.start();
+		try {
+			return storage.listPhotos(cursor, pageSize);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			listPhotos.stop(start);
+		}
+	}
+
+	@Override
+	public PhotoPage listPhotos(Long from, Long to, String cursor, int pageSize) throws IOException {
+		long start = listPhotoRange.start();
+		try {
+			return storage.listPhotos(from, to, cursor, pageSize);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			listPhotoRange.stop(start);
+		}
+	}
+
+	@Override
+	public List<TimelineBucket> getTimeline(Long from, Long to, TimelineBucket.Period period) throws IOException {
+		long start = getTimeline.start();
+		try {
+			return storage.getTimeline(from, to, period);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			getTimeline.stop(start);
+		}
+	}
+
+	@Override
+	public byte[] getPhotoKey(String hashId, Long date) {
+		return storage.getPhotoKey(hashId, date);
+	}
+
+	@Override
+	public byte[] getCommentKey(String hashId, Long date) {
+		return storage.getCommentKey(hashId, date);
+	}
+
+	/**
+	 * The comments are read lazily while iterating, so only the rows read are
+	 * measured, by the storage itself
+	 */
+	@Override
+	public Iterable<Comment> getComments(Photo p) {
+		return storage.getComments(p);
+	}
+
+	@Override
+	public Map<byte[], List<Comment>> getComments(List<Photo> photos) throws IOException {
+		long start = getComments.start();
+		try {
+			return storage.getComments(photos);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			getComments.stop(start);
+		}
+	}
+
+	@Override
+	public long[] getCommentCounts(List<byte[]> photoKeys) throws IOException {
+		long start = getCommentCounts.start();
+		try {
+			return storage.getCommentCounts(photoKeys);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			getCommentCounts.stop(start);
+		}
+	}
+
+	@Override
+	public void storeSentiments(List<Comment> comments) throws IOException {
+		long start = storeSentiments.start();
+		try {
+			storage.storeSentiments(comments);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			storeSentiments.stop(start);
+		}
+	}
+
+	@Override
+	public SentimentSummary getSentiment(byte[] photoKey) throws IOException {
+		long start = getSentiment.start();
+		try {
+			return storage.getSentiment(photoKey);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			getSentiment.stop(start);
+		}
+	}
+
+	@Override
+	public List<byte[]> findSimilar(long perceptualHash, int maxDistance) throws IOException {
+		long start = findSimilar.start();
+		try {
+			return storage.findSimilar(perceptualHash, maxDistance);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			findSimilar.stop(start);
+		}
+	}
+
+	@Override
+	public PhotoPage search(String query, String cursor, int pageSize) throws IOException {
+		long start = search.start();
+		try {
+			return storage.search(query, cursor, pageSize);
+		} catch (IOException e) {
+			errors.inc();
+			throw e;
+		} finally {
+			search.stop(start);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		storage.close();
+	}
+}
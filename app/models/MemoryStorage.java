@@ -0,0 +1,626 @@
+package models;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import utils.PerceptualHash;
+import utils.TextIndex;
+import utils.Utils;
+
+/**
+ * Photos and comments kept in sorted lock-free maps in the heap. Keys have the
+ * same layout as the unsalted HBase keys, so photos list newest first and a
+ * photo's comments are contiguous, and cursors work the same way. Meant for
+ * running without a cluster, on a single node or as the baseline of benchmarks.
+ *
+ * When given a snapshot file the storage is loaded from it on open and written
+ * to it by {@link #snapshot()} and on close. Anything stored after the last
+ * snapshot is lost on a crash.
+ *
+ */
+public class MemoryStorage implements IStorage {
+
+	static Logger log = LoggerFactory.getLogger(MemoryStorage.class);
+
+	private static int KEY_LENGTH = 8 + 32; // 8 for timestamp + 32 for hash id
+	private static int SNAPSHOT_MAGIC_V1 = 0x50484d31;
+	private static int SNAPSHOT_MAGIC_V2 = 0x50484d32; // adds the sentiment of comments
+	private static int SNAPSHOT_MAGIC = 0x50484d33; // adds the perceptual hash of photos
+
+	/**
+	 * As many comments as the HBase storage reads for a photo
+	 */
+	private static int COMMENTS_PER_PHOTO = 20;
+
+	/**
+	 * A stored comment, which references its parent by key
+	 */
+	private static class StoredComment {
+		final String body;
+		final byte[] parentKey;
+		final Long date;
+		volatile Comment.Sentiment sentiment;
+
+		StoredComment(String body, byte[] parentKey, Long date) {
+			this.body = body;
+			this.parentKey = parentKey;
+			this.date = date;
+		}
+
+		Comment toComment(Photo parent) {
+			Comment comment = new Comment(body, parent, date);
+			comment.setSentiment(sentiment);
+			return comment;
+		}
+	}
+
+	private final ConcurrentSkipListMap<byte[], Photo> photos = new ConcurrentSkipListMap<byte[], Photo>(Bytes.BYTES_COMPARATOR);
+	private final ConcurrentSkipListMap<byte[], StoredComment> comments = new ConcurrentSkipListMap<byte[], StoredComment>(Bytes.BYTES_COMPARATOR);
+	private final ConcurrentHashMap<String, byte[]> hashIndex = new ConcurrentHashMap<String, byte[]>();
+	private final ConcurrentSkipListMap<byte[], AtomicLong> commentCounts = new ConcurrentSkipListMap<byte[], AtomicLong>(Bytes.BYTES_COMPARATOR);
+	private final ConcurrentSkipListMap<byte[], AtomicLongArray> sentiments = new ConcurrentSkipListMap<byte[], AtomicLongArray>(Bytes.BYTES_COMPARATOR);
+	private final File snapshotFile;
+
+	/**
+	 * Photo counts by the start of their day, rebuilt on load
+	 */
+	private final ConcurrentSkipListMap<Long, AtomicLong> dayCounts = new ConcurrentSkipListMap<Long, AtomicLong>();
+
+	/**
+	 * Postings of the titles and comments by term, rebuilt on load
+	 */
+	private final ConcurrentSkipListMap<String, Queue<Posting>> textIndex = new ConcurrentSkipListMap<String, Queue<Posting>>();
+
+	private static class Posting {
+		final byte[] photoKey;
+		final long weight;
+
+		Posting(byte[] photoKey, long weight) {
+			this.photoKey = photoKey;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Photos by the value of each chunk of their perceptual hash, the same
+	 * multi-index as the HBase storage keeps
+	 */
+	@SuppressWarnings("unchecked")
+	private final ConcurrentHashMap<Integer, List<byte[]>>[] similarityIndex = new ConcurrentHashMap[PerceptualHash.CHUNKS];
+	{
+		for (int i = 0; i < similarityIndex.length; i++) similarityIndex[i] = new ConcurrentHashMap<Integer, List<byte[]>>();
+	}
+
+	/**
+	 * @param snapshotFile where the storage is loaded from and saved to, or null
+	 * @throws IOException if the snapshot exists but cannot be read
+	 */
+	public MemoryStorage(File snapshotFile) throws IOException {
+		log.info("Opening MemoryStorage");
+		this.snapshotFile = snapshotFile;
+		if (snapshotFile != null && snapshotFile.exists()) load(snapshotFile);
+	}
+
+	/**
+	 * Photos are de-duplicated by their hash, claimed atomically in the hash
+	 * index before the photo is added.
+	 * @return false if a photo with the same hash is already stored
+	 */
+	@Override
+	public boolean store(Photo photo) throws IOException {
+		byte[] key = getPhotoKey(photo.getImageHash(), photo.getDate());
+		if (hashIndex.putIfAbsent(photo.getImageHash(), key) != null) {
+			log.debug("Photo {} is already stored", photo.getImageHash());
+			return false;
+		}
+		photos.put(key, photo);
+		indexPerceptualHash(key, photo.getPerceptualHash());
+		indexText(key, photo.getTitle(), TextIndex.TITLE_WEIGHT);
+		countInTimeline(photo.getDate());
+		return true;
+	}
+
+	@Override
+	public byte[] findPhoto(String imageHash) throws IOException {
+		byte[] key = hashIndex.get(imageHash);
+		if (key == null || !photos.containsKey(key)) return null;
+		return key;
+	}
+
+	@Override
+	public boolean store(Comment comment) throws IOException {
+		Photo parent = comment.getParent();
+		byte[] parentKey = getPhotoKey(parent.getImageHash(), parent.getDate());
+		StoredComment previous = comments.putIfAbsent(getCommentKey(parent.getImageHash(), comment.getDate()),
+				new StoredComment(comment.getContents(), parentKey, comment.getDate()));
+		// Storing a comment again, e.g. on a retry, changes nothing
+		if (previous != null) return false;
+		countComment(parentKey);
+		indexText(parentKey, comment.getContents(), 1);
+		return true;
+	}
+	
+	/**
+	 * @param photoKey
+	 */
+	private void countComment(byte[] photoKey) {
+		AtomicLong count = commentCounts.get(photoKey);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = commentCounts.putIfAbsent(photoKey, created);
+			if (count == null) count = created;
+		}
+		count.incrementAndGet();
+	}
+	
+	@Override
+	public long[] getCommentCounts(List<byte[]> photoKeys) throws IOException {
+		long[] counts = new long[photoKeys.size()];
+		for (int i = 0; i < counts.length; i++) {
+			AtomicLong count = commentCounts.get(photoKeys.get(i));
+			if (count != null) counts[i] = count.get();
+		}
+		return counts;
+	}
+
+	@Override
+	public Photo getPhoto(byte[] key) throws IOException {
+		assert key != null : "Null key";
+		return photos.get(key);
+	}
+
+	@Override
+	public PhotoInfo getPhotoInfo(byte[] key) throws IOException {
+		Photo photo = getPhoto(key);
+		if (photo == null) return null;
+		return new PhotoInfo(key, photo.getImageHash(), photo.getTitle(), photo.getDate());
+	}
+
+	@Override
+	public byte[] getPhotoContents(byte[] key, Photo.Size size) throws IOException {
+		assert key != null : "Null key";
+		Photo photo = photos.get(key);
+		if (photo == null) return null;
+		byte[] contents = photo.getContents(size);
+		return contents != null ? contents : photo.getContents();
+	}
+
+	@Override
+	public InputStream openPhotoContents(byte[] key, Photo.Size size) throws IOException {
+		byte[] contents = getPhotoContents(key, size);
+		return contents == null ? null : new ByteArrayInputStream(contents);
+	}
+
+	@Override
+	public PhotoPage listPhotos(String cursor, int pageSize) throws IOException {
+		return listPhotos(null, null, cursor, pageSize);
+	}
+
+	@Override
+	public PhotoPage listPhotos(Long from, Long to, String cursor, int pageSize) throws IOException {
+		assert pageSize > 0 : "Empty page requested";
+		if (from != null && to != null && from >= to) return PhotoPage.EMPTY;
+
+		// The same bounds as the HBase scan, an inverse date prefix sorts before the keys of its date
+		ConcurrentNavigableMap<byte[], Photo> listing = photos;
+		if (from != null) listing = listing.headMap(Bytes.toBytes(Long.MAX_VALUE - (from - 1)), false);
+		if (to != null) listing = listing.tailMap(Bytes.toBytes(Long.MAX_VALUE - (to - 1)), true);
+		if (cursor != null) listing = listing.tailMap(Utils.decodeCursor(cursor), false);
+
+		// One extra photo tells us whether there is a next page
+		List<PhotoInfo> page = new ArrayList<PhotoInfo>(pageSize + 1);
+		for (Map.Entry<byte[], Photo> entry : listing.entrySet()) {
+			Photo photo = entry.getValue();
+			page.add(new PhotoInfo(entry.getKey(), photo.getImageHash(), photo.getTitle(), photo.getDate()));
+			if (page.size() > pageSize) break;
+		}
+
+		boolean hasNext = page.size() > pageSize;
+		if (hasNext) page = page.subList(0, pageSize);
+		String nextCursor = hasNext ? Utils.encodeCursor(page.get(page.size() - 1).getKey()) : null;
+		return new PhotoPage(page, nextCursor);
+	}
+
+	/**
+	 * The same layout as the unsalted HBase photo key: the reverse timestamp
+	 * followed by the hash.
+	 */
+	@Override
+	public byte[] getPhotoKey(String hashId, Long date) {
+		assert date != null;
+
+		byte[] key = new byte[KEY_LENGTH];
+		Bytes.putLong(key, 0, Long.MAX_VALUE - date);
+		Bytes.putBytes(key, 8, hashId.getBytes(), 0, 32);
+		return key;
+	}
+
+	/**
+	 * The same layout as the HBase comment key: the hash followed by the
+	 * reverse timestamp.
+	 */
+	@Override
+	public byte[] getCommentKey(String hashId, Long date) {
+		byte[] key = new byte[KEY_LENGTH];
+		Bytes.putBytes(key, 0, hashId.getBytes(), 0, 32);
+		Bytes.putLong(key, 32, Long.MAX_VALUE - date);
+		return key;
+	}
+
+	@Override
+	public Iterable<Comment> getComments(final Photo p) {
+		final ConcurrentNavigableMap<byte[], StoredComment> range = comments.subMap(
+				getCommentKey(p.getImageHash(), Long.MAX_VALUE), true, getCommentKey(p.getImageHash(), 0L), false);
+		return new Iterable<Comment>() {
+			@Override
+			public Iterator<Comment> iterator() {
+				final Iterator<StoredComment> stored = range.values().iterator();
+				return new Iterator<Comment>() {
+					int count = 0;
+
+					@Override
+					public boolean hasNext() {
+						return count < COMMENTS_PER_PHOTO && stored.hasNext();
+					}
+
+					@Override
+					public Comment next() {
+						StoredComment comment = stored.next();
+						count++;
+						return comment.toComment(p);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public Map<byte[], List<Comment>> getComments(List<Photo> photos) throws IOException {
+		Map<byte[], List<Comment>> result = new TreeMap<byte[], List<Comment>>(Bytes.BYTES_COMPARATOR);
+		for (Photo photo : photos) {
+			List<Comment> photoComments = new ArrayList<Comment>();
+			for (Comment comment : getComments(photo)) photoComments.add(comment);
+			result.put(getPhotoKey(photo.getImageHash(), photo.getDate()), photoComments);
+		}
+		return result;
+	}
+
+	@Override
+	public void storeSentiments(List<Comment> scored) throws IOException {
+		for (Comment comment : scored) {
+			Photo parent = comment.getParent();
+			StoredComment stored = comments.get(getCommentKey(parent.getImageHash(), comment.getDate()));
+			if (stored == null) continue;
+			stored.sentiment = comment.getSentiment();
+			countSentiment(stored.parentKey, comment.getSentiment());
+		}
+	}
+
+	/**
+	 * @param photoKey
+	 * @param sentiment
+	 */
+	private void countSentiment(byte[] photoKey, Comment.Sentiment sentiment) {
+		AtomicLongArray counts = sentiments.get(photoKey);
+		if (counts == null) {
+			AtomicLongArray created = new AtomicLongArray(Comment.Sentiment.values().length);
+			counts = sentiments.putIfAbsent(photoKey, created);
+			if (counts == null) counts = created;
+		}
+		counts.incrementAndGet(sentiment.ordinal());
+	}
+
+	@Override
+	public SentimentSummary getSentiment(byte[] photoKey) throws IOException {
+		AtomicLongArray counts = sentiments.get(photoKey);
+		if (counts == null) return SentimentSummary.NONE;
+		return new SentimentSummary(counts.get(Comment.Sentiment.POSITIVE.ordinal()),
+				counts.get(Comment.Sentiment.NEGATIVE.ordinal()), counts.get(Comment.Sentiment.NEUTRAL.ordinal()));
+	}
+
+	/**
+	 * @param photoKey
+	 * @param perceptualHash the hash of the photo, or null if it has none
+	 */
+	private void indexPerceptualHash(byte[] photoKey, Long perceptualHash) {
+		if (perceptualHash == null) return;
+		for (int i = 0; i < PerceptualHash.CHUNKS; i++) {
+			Integer chunk = PerceptualHash.chunk(perceptualHash, i);
+			List<byte[]> keys = similarityIndex[i].get(chunk);
+			if (keys == null) {
+				List<byte[]> created = new CopyOnWriteArrayList<byte[]>();
+				keys = similarityIndex[i].putIfAbsent(chunk, created);
+				if (keys == null) keys = created;
+			}
+			keys.add(photoKey);
+		}
+	}
+
+	@Override
+	public List<byte[]> findSimilar(long perceptualHash, int maxDistance) throws IOException {
+		int radius = PerceptualHash.probeRadius(maxDistance);
+		Map<String, SimilarPhoto> matches = new HashMap<String, SimilarPhoto>();
+		for (int i = 0; i < PerceptualHash.CHUNKS; i++) {
+			for (int chunk : PerceptualHash.chunksWithin(PerceptualHash.chunk(perceptualHash, i), radius)) {
+				List<byte[]> keys = similarityIndex[i].get(chunk);
+				if (keys == null) continue;
+				for (byte[] key : keys) {
+					Photo photo = photos.get(key);
+					if (photo == null) continue;
+					int distance = PerceptualHash.distance(perceptualHash, photo.getPerceptualHash());
+					if (distance <= maxDistance) matches.put(Bytes.toStringBinary(key), new SimilarPhoto(key, distance));
+				}
+			}
+		}
+		return SimilarPhoto.closestFirst(matches.values());
+	}
+
+	/**
+	 * @param date
+	 */
+	private void countInTimeline(long date) {
+		Long day = TimelineBucket.Period.DAY.startOf(date);
+		AtomicLong count = dayCounts.get(day);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = dayCounts.putIfAbsent(day, created);
+			if (count == null) count = created;
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Months are added up from their days
+	 */
+	@Override
+	public List<TimelineBucket> getTimeline(Long from, Long to, TimelineBucket.Period period) throws IOException {
+		List<TimelineBucket> buckets = new ArrayList<TimelineBucket>();
+		if (from != null && to != null && from >= to) return buckets;
+
+		long start = -1, count = 0;
+		for (Map.Entry<Long, AtomicLong> day : dayCounts.descendingMap().entrySet()) {
+			long periodStart = period.startOf(day.getKey());
+			if (to != null && periodStart >= to) continue;
+			if (from != null && periodStart < from) break;
+			if (periodStart != start) {
+				if (count > 0) buckets.add(new TimelineBucket(period, start, count));
+				start = periodStart;
+				count = 0;
+			}
+			count += day.getValue().get();
+		}
+		if (count > 0) buckets.add(new TimelineBucket(period, start, count));
+		return buckets;
+	}
+
+	/**
+	 * @param photoKey
+	 * @param text a title or comment of the photo
+	 * @param weight
+	 */
+	private void indexText(byte[] photoKey, String text, int weight) {
+		for (Map.Entry<String, Integer> term : TextIndex.termWeights(text, weight).entrySet()) {
+			Queue<Posting> postings = textIndex.get(term.getKey());
+			if (postings == null) {
+				Queue<Posting> created = new ConcurrentLinkedQueue<Posting>();
+				postings = textIndex.putIfAbsent(term.getKey(), created);
+				if (postings == null) postings = created;
+			}
+			postings.add(new Posting(photoKey, term.getValue()));
+		}
+	}
+
+	@Override
+	public PhotoPage search(String query, String cursor, int pageSize) throws IOException {
+		assert pageSize > 0 : "Empty page requested";
+
+		int offset = SearchRanking.offsetOf(cursor);
+		List<String> terms = TextIndex.queryTerms(query);
+		if (terms.isEmpty()) return PhotoPage.EMPTY;
+
+		SearchRanking ranking = new SearchRanking(terms.size(), photos.size());
+		for (int i = 0; i < terms.size(); i++) {
+			String term = terms.get(i);
+			if (TextIndex.isPrefix(term)) {
+				String prefix = TextIndex.prefixOf(term);
+				for (Queue<Posting> postings : textIndex.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+					addPostings(postings, i, ranking);
+				}
+			} else {
+				Queue<Posting> postings = textIndex.get(term);
+				if (postings != null) addPostings(postings, i, ranking);
+			}
+		}
+
+		List<byte[]> ranked = ranking.ranked();
+		List<PhotoInfo> page = new ArrayList<PhotoInfo>(pageSize);
+		for (byte[] key : ranked.subList(Math.min(offset, ranked.size()), Math.min(offset + pageSize, ranked.size()))) {
+			Photo photo = photos.get(key);
+			if (photo != null) page.add(new PhotoInfo(key, photo.getImageHash(), photo.getTitle(), photo.getDate()));
+		}
+		return new PhotoPage(page, SearchRanking.nextCursor(ranked, offset, pageSize));
+	}
+
+	private static void addPostings(Queue<Posting> postings, int queryTerm, SearchRanking ranking) {
+		List<byte[]> photoKeys = new ArrayList<byte[]>();
+		List<Long> weights = new ArrayList<Long>();
+		for (Posting posting : postings) {
+			photoKeys.add(posting.photoKey);
+			weights.add(posting.weight);
+		}
+		ranking.add(queryTerm, photoKeys, weights);
+	}
+
+	/**
+	 * Write the storage to its snapshot file, if it has one. The snapshot is
+	 * written to a temporary file first and then renamed over the previous one.
+	 * Concurrent stores may or may not be included.
+	 * @throws IOException
+	 */
+	public synchronized void snapshot() throws IOException {
+		if (snapshotFile == null) return;
+
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		int photoCount = 0, commentCount = 0;
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			for (Photo photo : photos.values()) {
+				out.writeBoolean(true);
+				writeString(out, photo.getImageHash());
+				writeString(out, photo.getTitle());
+				out.writeLong(photo.getDate());
+				for (Photo.Size size : Photo.Size.values()) writeBytes(out, photo.getContents(size));
+				out.writeBoolean(photo.getPerceptualHash() != null);
+				if (photo.getPerceptualHash() != null) out.writeLong(photo.getPerceptualHash());
+				photoCount++;
+			}
+			out.writeBoolean(false);
+			for (Map.Entry<byte[], StoredComment> entry : comments.entrySet()) {
+				out.writeBoolean(true);
+				writeBytes(out, entry.getKey());
+				writeBytes(out, entry.getValue().parentKey);
+				writeString(out, entry.getValue().body);
+				out.writeLong(entry.getValue().date);
+				Comment.Sentiment sentiment = entry.getValue().sentiment;
+				writeString(out, sentiment == null ? null : sentiment.name());
+				commentCount++;
+			}
+			out.writeBoolean(false);
+		} finally {
+			out.close();
+		}
+
+		if (!tmp.renameTo(snapshotFile)) {
+			// Renaming over an existing file fails on some platforms
+			if (!snapshotFile.delete() || !tmp.renameTo(snapshotFile)) {
+				throw new IOException("Could not replace snapshot " + snapshotFile);
+			}
+		}
+		log.info("Wrote snapshot of {} photos and {} comments to {}", new Object[] {photoCount, commentCount, snapshotFile});
+	}
+
+	/**
+	 * @param file
+	 * @throws IOException
+	 */
+	private void load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			int magic = in.readInt();
+			if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V2 && magic != SNAPSHOT_MAGIC_V1) throw new IOException("Not a storage snapshot: " + file);
+			while (in.readBoolean()) {
+				String hash = readString(in);
+				String title = readString(in);
+				Long date = in.readLong();
+				// The derivatives are written before the original the photo is built from
+				Map<Photo.Size, byte[]> contents = new EnumMap<Photo.Size, byte[]>(Photo.Size.class);
+				for (Photo.Size size : Photo.Size.values()) contents.put(size, readBytes(in));
+				Photo photo = new Photo(title, contents.remove(Photo.Size.ORIGINAL), hash, date);
+				for (Map.Entry<Photo.Size, byte[]> derivative : contents.entrySet()) {
+					if (derivative.getValue() != null) photo.setContents(derivative.getKey(), derivative.getValue());
+				}
+				byte[] key = getPhotoKey(hash, date);
+				if (magic == SNAPSHOT_MAGIC && in.readBoolean()) photo.setPerceptualHash(in.readLong());
+				photos.put(key, photo);
+				hashIndex.put(hash, key);
+				indexPerceptualHash(key, photo.getPerceptualHash());
+				indexText(key, title, TextIndex.TITLE_WEIGHT);
+				countInTimeline(date);
+			}
+			while (in.readBoolean()) {
+				byte[] key = readBytes(in);
+				byte[] parentKey = readBytes(in);
+				String body = readString(in);
+				StoredComment comment = new StoredComment(body, parentKey, in.readLong());
+				String sentiment = magic == SNAPSHOT_MAGIC_V1 ? null : readString(in);
+				if (sentiment != null) comment.sentiment = Comment.Sentiment.valueOf(sentiment);
+				comments.put(key, comment);
+				// Counts are not saved, they are recounted from the comments
+				countComment(parentKey);
+				if (comment.sentiment != null) countSentiment(parentKey, comment.sentiment);
+				indexText(parentKey, body, 1);
+			}
+		} finally {
+			in.close();
+		}
+		log.info("Loaded {} photos and {} comments from {}", new Object[] {photos.size(), comments.size(), file});
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+		out.writeInt(data == null ? -1 : data.length);
+		if (data != null) out.write(data);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) return null;
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return data;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		writeBytes(out, value == null ? null : Bytes.toBytes(value));
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] data = readBytes(in);
+		return data == null ? null : Bytes.toString(data);
+	}
+
+	/**
+	 * @return the number of stored photos
+	 */
+	public int getPhotoCount() {
+		return photos.size();
+	}
+
+	/**
+	 * @return the number of stored comments
+	 */
+	public int getCommentCount() {
+		return comments.size();
+	}
+
+	/**
+	 * Save a last snapshot, if configured
+	 */
+	@Override
+	public void close() throws IOException {
+		log.info("Closing MemoryStorage");
+		snapshot();
+	}
+}
@@ -1,6 +1,8 @@
 package models;
 
 import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
 
 import utils.Utils;
 
@@ -15,10 +17,36 @@ import org.apache.commons.codec.binary.Base64;
  */
 public class Photo {
 
+	/**
+	 * The resolutions a photo is kept in. Derivatives are downscaled so that
+	 * their longest side fits in maxDimension, the original is kept as uploaded.
+	 */
+	public static enum Size {
+		THUMBNAIL(240),
+		MEDIUM(1024),
+		ORIGINAL(0);
+		
+		private int maxDimension;
+		
+		private Size(int maxDimension) {
+			this.maxDimension = maxDimension;
+		}
+		
+		public int getMaxDimension() {
+			return maxDimension;
+		}
+		
+		public boolean isDerivative() {
+			return maxDimension > 0;
+		}
+	};
+	
 	private Long date;
 	private String title;
 	private String imageHash;
 	private byte[] contents;
+	private Map<Size, byte[]> derivatives = new EnumMap<Size, byte[]>(Size.class);
+	private Long perceptualHash;
 	
 	public Photo(String id, Long date) {
 		this.imageHash = id;
@@ -36,6 +64,17 @@ public class Photo {
 		}
 	}
 	
+	/**
+	 * Construct a photo whose hash is already known, e.g. when read back from
+	 * storage, avoiding to hash the contents again
+	 */
+	public Photo(String title, byte[] contents, String imageHash, Long date) {
+		this.title = title;
+		this.contents = contents;
+		this.imageHash = imageHash;
+		this.date = date;
+	}
+	
 	public String getTitle() {
 		return title;
 	}
@@ -48,10 +87,40 @@ public class Photo {
 		return contents;
 	}
 	
+	/**
+	 * @param size
+	 * @return the contents in the given size or null if they are not loaded
+	 */
+	public byte[] getContents(Size size) {
+		if (size == Size.ORIGINAL) return contents;
+		return derivatives.get(size);
+	}
+	
+	/**
+	 * Attach a downscaled derivative of the photo
+	 * @param size
+	 * @param data
+	 */
+	public void setContents(Size size, byte[] data) {
+		assert size.isDerivative() : "The original contents are set on construction";
+		derivatives.put(size, data);
+	}
+	
 	public Long getDate() {
 		return date;
 	}
 	
+	/**
+	 * @return the perceptual hash of the image or null if it is not known
+	 */
+	public Long getPerceptualHash() {
+		return perceptualHash;
+	}
+	
+	public void setPerceptualHash(Long perceptualHash) {
+		this.perceptualHash = perceptualHash;
+	}
+	
 	/**
 	 * Used in HTML image rendering
 	 * @return a base64 string of the photo's contents
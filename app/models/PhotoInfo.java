@@ -0,0 +1,52 @@
+package models;
+
+/**
+ * Lightweight description of a stored photo, used for listings. It carries the
+ * metadata needed to link to a photo but none of its image data.
+ *
+ */
+public class PhotoInfo {
+
+	private byte[] key;
+	private String imageHash;
+	private String title;
+	private Long date;
+	private Long commentCount;
+	
+	public PhotoInfo(byte[] key, String imageHash, String title, Long date) {
+		this.key = key;
+		this.imageHash = imageHash;
+		this.title = title;
+		this.date = date;
+	}
+	
+	/**
+	 * @return the storage key of the photo
+	 */
+	public byte[] getKey() {
+		return key;
+	}
+	
+	public String getImageHash() {
+		return imageHash;
+	}
+	
+	public String getTitle() {
+		return title;
+	}
+	
+	public Long getDate() {
+		return date;
+	}
+	
+	/**
+	 * @return the number of comments on the photo or null if it was not read
+	 */
+	public Long getCommentCount() {
+		return commentCount;
+	}
+	
+	public void setCommentCount(Long commentCount) {
+		this.commentCount = commentCount;
+	}
+}
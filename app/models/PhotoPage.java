@@ -0,0 +1,37 @@
+package models;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of a photo listing. The cursor is opaque to callers and is passed
+ * back to the storage to continue the listing after the last photo of this page.
+ *
+ */
+public class PhotoPage {
+
+	public static final PhotoPage EMPTY = new PhotoPage(Collections.<PhotoInfo>emptyList(), null);
+	
+	private List<PhotoInfo> photos;
+	private String nextCursor;
+	
+	public PhotoPage(List<PhotoInfo> photos, String nextCursor) {
+		this.photos = photos;
+		this.nextCursor = nextCursor;
+	}
+	
+	public List<PhotoInfo> getPhotos() {
+		return photos;
+	}
+	
+	/**
+	 * @return the cursor of the next page or null if this is the last one
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+	
+	public boolean hasNext() {
+		return nextCursor != null;
+	}
+}
@@ -0,0 +1,142 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Ranks the photos matching a full text query from the postings read from the
+ * index. A photo matches when every query term has a posting for it, and
+ * scores the sum over the terms of (1 + ln weight) * ln(1 + photos / matching
+ * photos), so rare terms and terms in the title count most.
+ *
+ */
+class SearchRanking {
+
+	/**
+	 * The most photos ranked for a query, the pages after are left out
+	 */
+	static final int MAX_RESULTS = 1000;
+
+	private final int queryTerms;
+	private final long documents;
+	private final Map<String, Match> matches = new HashMap<String, Match>();
+
+	private static class Match {
+		final byte[] key;
+		final boolean[] terms;
+		double score;
+
+		Match(byte[] key, int queryTerms) {
+			this.key = key;
+			this.terms = new boolean[queryTerms];
+		}
+
+		boolean matchesAll() {
+			for (boolean term : terms) {
+				if (!term) return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @param queryTerms the number of terms of the query
+	 * @param documents the number of indexed photos
+	 */
+	SearchRanking(int queryTerms, long documents) {
+		this.queryTerms = queryTerms;
+		this.documents = Math.max(1, documents);
+	}
+
+	/**
+	 * Add the postings of an index term, which may hold several for a photo
+	 * whose title and comments have the term
+	 * @param queryTerm the index of the query term the index term matches
+	 * @param photoKeys
+	 * @param weights the weight of each posting
+	 */
+	void add(int queryTerm, List<byte[]> photoKeys, List<Long> weights) {
+		Map<String, Long> byPhoto = new LinkedHashMap<String, Long>();
+		Map<String, byte[]> keys = new HashMap<String, byte[]>();
+		for (int i = 0; i < photoKeys.size(); i++) {
+			String id = Bytes.toStringBinary(photoKeys.get(i));
+			Long previous = byPhoto.get(id);
+			byPhoto.put(id, previous == null ? weights.get(i) : previous + weights.get(i));
+			keys.put(id, photoKeys.get(i));
+		}
+
+		double idf = Math.log(1 + (double) documents / Math.max(1, byPhoto.size()));
+		for (Map.Entry<String, Long> posting : byPhoto.entrySet()) {
+			Match match = matches.get(posting.getKey());
+			if (match == null) {
+				match = new Match(keys.get(posting.getKey()), queryTerms);
+				matches.put(posting.getKey(), match);
+			}
+			match.terms[queryTerm] = true;
+			match.score += (1 + Math.log(Math.max(1, posting.getValue()))) * idf;
+		}
+	}
+
+	/**
+	 * @return the keys of the photos matching every term, best first
+	 */
+	List<byte[]> ranked() {
+		List<Match> ranked = new ArrayList<Match>();
+		for (Match match : matches.values()) {
+			if (match.matchesAll()) ranked.add(match);
+		}
+		Collections.sort(ranked, BY_SCORE);
+
+		List<byte[]> keys = new ArrayList<byte[]>(Math.min(ranked.size(), MAX_RESULTS));
+		for (Match match : ranked) {
+			if (keys.size() == MAX_RESULTS) break;
+			keys.add(match.key);
+		}
+		return keys;
+	}
+
+	/**
+	 * Equal scores are ordered by key, which is newest first without salting
+	 */
+	private static final Comparator<Match> BY_SCORE = new Comparator<Match>() {
+		@Override
+		public int compare(Match a, Match b) {
+			int byScore = Double.compare(b.score, a.score);
+			return byScore != 0 ? byScore : Bytes.compareTo(a.key, b.key);
+		}
+	};
+
+	/**
+	 * @param cursor a cursor returned by {@link #nextCursor}, or null for the first page
+	 * @return the position in the ranking the cursor points at
+	 * @throws IllegalArgumentException if the cursor is malformed
+	 */
+	static int offsetOf(String cursor) {
+		if (cursor == null) return 0;
+		int offset;
+		try {
+			offset = Integer.parseInt(cursor);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Malformed cursor " + cursor);
+		}
+		if (offset < 0) throw new IllegalArgumentException("Malformed cursor " + cursor);
+		return offset;
+	}
+
+	/**
+	 * @param ranked
+	 * @param offset
+	 * @param pageSize
+	 * @return the cursor of the page after the one at offset, or null if it is the last
+	 */
+	static String nextCursor(List<byte[]> ranked, int offset, int pageSize) {
+		return offset + pageSize < ranked.size() ? Integer.toString(offset + pageSize) : null;
+	}
+}
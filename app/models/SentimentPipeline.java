@@ -0,0 +1,183 @@
+package models;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import utils.Metrics;
+import utils.SentimentLexicon;
+
+/**
+ * Scores the sentiment of new comments in the background. Comments are queued
+ * once stored and a single thread takes them in batches, has them scored in
+ * parallel on one thread per core and writes the labels and the per-photo
+ * aggregates of the whole batch at once. Queueing never blocks: when the queue
+ * is full the comment is left unscored.
+ *
+ * Sentiment is best-effort. A batch whose scoring or writing fails is not
+ * retried, as writing it again would count the comments already aggregated
+ * twice; its comments are counted as failed. A write failing part way leaves
+ * some comments of the batch labelled and others not.
+ *
+ */
+public class SentimentPipeline {
+
+	static Logger log = LoggerFactory.getLogger(SentimentPipeline.class);
+
+	private static final Comment SHUTDOWN = new Comment(null, null, null);
+
+	private final IStorage storage;
+	private final SentimentLexicon lexicon;
+	private final BlockingQueue<Comment> queue;
+	private final int batchSize;
+	private final int threads;
+	private final ExecutorService scorers;
+	private final Thread writer;
+	private volatile boolean closed;
+
+	private final Metrics.Counter scored = Metrics.counter("sentiment_comments_total", "outcome", "scored");
+	private final Metrics.Counter dropped = Metrics.counter("sentiment_comments_total", "outcome", "dropped");
+	private final Metrics.Counter failed = Metrics.counter("sentiment_comments_total", "outcome", "failed");
+	private final Metrics.Timer batchTimer = Metrics.timer("sentiment_batch_seconds");
+
+	/**
+	 * @param storage where the labels and aggregates are written
+	 * @param lexicon
+	 * @param threads how many threads score a batch
+	 * @param batchSize the most comments scored and written at once
+	 * @param queueSize the most comments waiting to be scored
+	 */
+	public SentimentPipeline(IStorage storage, SentimentLexicon lexicon, int threads, int batchSize, int queueSize) {
+		this.storage = storage;
+		this.lexicon = lexicon;
+		this.threads = threads;
+		this.batchSize = batchSize;
+		this.queue = new LinkedBlockingQueue<Comment>(queueSize);
+		this.scorers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				// Like the writer, never keeps the JVM from exiting
+				Thread thread = new Thread(r, "sentiment-scorer-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				processLoop();
+			}
+		}, "sentiment");
+		this.writer.setDaemon(true);
+		this.writer.start();
+		log.info("Started sentiment pipeline with {} scoring threads", threads);
+	}
+
+	/**
+	 * Queue a stored comment to be scored
+	 * @param comment
+	 * @return false if the queue is full and the comment will not be scored
+	 */
+	public boolean submit(Comment comment) {
+		if (closed || !queue.offer(comment)) {
+			dropped.inc();
+			return false;
+		}
+		// Closed in between, the writer may have drained the queue for the last time
+		if (closed && queue.remove(comment)) {
+			dropped.inc();
+			return false;
+		}
+		return true;
+	}
+
+	private void processLoop() {
+		List<Comment> batch = new ArrayList<Comment>(batchSize);
+		boolean shutdown = false;
+		while (!shutdown) {
+			try {
+				Comment first = queue.take();
+				if (first == SHUTDOWN) break;
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				shutdown = batch.remove(SHUTDOWN);
+			} catch (InterruptedException e) {
+				shutdown = true;
+			}
+			process(batch);
+			batch.clear();
+		}
+
+		// Score whatever is left after the shutdown marker
+		queue.drainTo(batch);
+		batch.remove(SHUTDOWN);
+		process(batch);
+	}
+
+	private void process(List<Comment> batch) {
+		if (batch.isEmpty()) return;
+		long start = batchTimer.start();
+		try {
+			score(batch);
+			storage.storeSentiments(batch);
+			scored.add(batch.size());
+			log.debug("Scored a batch of {} comments", batch.size());
+		} catch (Exception e) {
+			log.error("Sentiment batch failed", e);
+			failed.add(batch.size());
+		} finally {
+			batchTimer.stop(start);
+		}
+	}
+
+	/**
+	 * Label the comments, splitting them among the scoring threads
+	 * @param batch
+	 */
+	private void score(final List<Comment> batch) throws InterruptedException, ExecutionException {
+		int slice = (batch.size() + threads - 1) / threads;
+		List<Future<Void>> slices = new ArrayList<Future<Void>>(threads);
+		for (int from = 0; from < batch.size(); from += slice) {
+			final List<Comment> part = batch.subList(from, Math.min(batch.size(), from + slice));
+			slices.add(scorers.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (Comment comment : part) comment.setSentiment(lexicon.classify(comment.getContents()));
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> future : slices) future.get();
+	}
+
+	/**
+	 * Score the queued comments and stop
+	 */
+	public void close() {
+		if (closed) return;
+		closed = true;
+		try {
+			queue.put(SHUTDOWN);
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			scorers.shutdown();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package models;
+
+/**
+ * The number of comments of a photo with each sentiment
+ *
+ */
+public class SentimentSummary {
+
+	public static final SentimentSummary NONE = new SentimentSummary(0, 0, 0);
+	
+	private long positive;
+	private long negative;
+	private long neutral;
+	
+	public SentimentSummary(long positive, long negative, long neutral) {
+		this.positive = positive;
+		this.negative = negative;
+		this.neutral = neutral;
+	}
+	
+	public long getPositive() {
+		return positive;
+	}
+	
+	public long getNegative() {
+		return negative;
+	}
+	
+	public long getNeutral() {
+		return neutral;
+	}
+	
+	/**
+	 * @return the number of scored comments
+	 */
+	public long getTotal() {
+		return positive + negative + neutral;
+	}
+	
+	/**
+	 * @return the share of positive comments among the scored ones, 0 if none
+	 */
+	public int getPositivePercent() {
+		long total = getTotal();
+		return total == 0 ? 0 : (int) Math.round(100.0 * positive / total);
+	}
+}
@@ -0,0 +1,42 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A photo found by a near duplicate lookup, with the distance between its
+ * perceptual hash and the searched one
+ *
+ */
+class SimilarPhoto {
+
+	final byte[] key;
+	final int distance;
+
+	SimilarPhoto(byte[] key, int distance) {
+		this.key = key;
+		this.distance = distance;
+	}
+
+	/**
+	 * @param matches
+	 * @return the keys of the photos, the closest first
+	 */
+	static List<byte[]> closestFirst(Collection<SimilarPhoto> matches) {
+		List<SimilarPhoto> sorted = new ArrayList<SimilarPhoto>(matches);
+		Collections.sort(sorted, BY_DISTANCE);
+		List<byte[]> keys = new ArrayList<byte[]>(sorted.size());
+		for (SimilarPhoto match : sorted) keys.add(match.key);
+		return keys;
+	}
+
+	private static final Comparator<SimilarPhoto> BY_DISTANCE = new Comparator<SimilarPhoto>() {
+		@Override
+		public int compare(SimilarPhoto a, SimilarPhoto b) {
+			return a.distance < b.distance ? -1 : (a.distance == b.distance ? 0 : 1);
+		}
+	};
+}
@@ -0,0 +1,123 @@
+package models;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import utils.DiskBlobCache;
+import utils.LruCache;
+import utils.Metrics;
+import utils.SentimentLexicon;
+import utils.Settings;
+
+/**
+ * Builds the storage the application runs on, as configured. The storage holds
+ * the connection to the datastore so it is created once at startup and closed
+ * on shutdown.
+ *
+ */
+public class StorageFactory {
+
+	static Logger log = LoggerFactory.getLogger(StorageFactory.class);
+
+	private StorageFactory() {
+	}
+
+	/**
+	 * @return the configured storage, wrapped in the configured caches
+	 */
+	public static IStorage create() {
+		IStorage storage = createEngine(Settings.getString("storage.engine", "hbase"));
+		long cacheBytes = Settings.getLong("storage.cache.maxBytes", 0);
+		DiskBlobCache diskCache = null;
+		String diskCacheDir = Settings.getString("storage.diskCache.dir", null);
+		if (diskCacheDir != null) {
+			try {
+				diskCache = new DiskBlobCache(new File(diskCacheDir),
+						Settings.getLong("storage.diskCache.maxBytes", 4L << 30),
+						Settings.getInt("storage.diskCache.segmentBytes", 64 << 20));
+			} catch (IOException e) {
+				log.error("Disk cache unavailable", e);
+			}
+		}
+		if (cacheBytes > 0 || diskCache != null) {
+			CachingStorage caching = new CachingStorage(storage, cacheBytes, diskCache);
+			registerMetrics(caching);
+			storage = caching;
+		}
+		if (Settings.getBoolean("metrics.enabled", true)) storage = new InstrumentedStorage(storage);
+		return storage;
+	}
+	
+	/**
+	 * @param storage where the sentiments are written
+	 * @return the configured sentiment pipeline or null if it is disabled or
+	 * its lexicon cannot be read
+	 */
+	public static SentimentPipeline createSentimentPipeline(IStorage storage) {
+		if (!Settings.getBoolean("sentiment.enabled", true)) return null;
+		SentimentLexicon lexicon;
+		try {
+			lexicon = SentimentLexicon.fromResource(Settings.getString("sentiment.lexicon", "sentiment-lexicon.txt"));
+		} catch (IOException e) {
+			log.error("Comments will not be scored", e);
+			return null;
+		}
+		return new SentimentPipeline(storage, lexicon,
+				Settings.getInt("sentiment.threads", Runtime.getRuntime().availableProcessors()),
+				Settings.getInt("sentiment.batchSize", 256),
+				Settings.getInt("sentiment.queueSize", 10000));
+	}
+	
+	/**
+	 * Expose the statistics of the caches as metrics
+	 * @param caching
+	 */
+	private static void registerMetrics(CachingStorage caching) {
+		final LruCache<?, ?> cache = caching.getCache();
+		Metrics.counter(new Metrics.Gauge() {
+			public double value() { return cache.getHits(); }
+		}, "photo_cache_hits_total");
+		Metrics.counter(new Metrics.Gauge() {
+			public double value() { return cache.getMisses(); }
+		}, "photo_cache_misses_total");
+		Metrics.counter(new Metrics.Gauge() {
+			public double value() { return cache.getEvictions(); }
+		}, "photo_cache_evictions_total");
+		Metrics.gauge(new Metrics.Gauge() {
+			public double value() { return cache.getWeight(); }
+		}, "photo_cache_bytes");
+		
+		final DiskBlobCache diskCache = caching.getDiskCache();
+		if (diskCache == null) return;
+		Metrics.counter(new Metrics.Gauge() {
+			public double value() { return diskCache.getHits(); }
+		}, "disk_cache_hits_total");
+		Metrics.counter(new Metrics.Gauge() {
+			public double value() { return diskCache.getMisses(); }
+		}, "disk_cache_misses_total");
+		Metrics.gauge(new Metrics.Gauge() {
+			public double value() { return diskCache.getDiskBytes(); }
+		}, "disk_cache_bytes");
+	}
+	
+	/**
+	 * @param engine the name of the storage engine
+	 * @return the storage of the given engine, without caching
+	 */
+	private static IStorage createEngine(String engine) {
+		if ("hbase".equals(engine)) return new HBaseStorage();
+		if ("memory".equals(engine)) {
+			String snapshot = Settings.getString("storage.memory.snapshot", null);
+			try {
+				return new MemoryStorage(snapshot == null ? null : new File(snapshot));
+			} catch (IOException e) {
+				log.error("MemoryStorage init error");
+				throw new RuntimeException(e);
+			}
+		}
+		throw new IllegalArgumentException("Unknown storage engine " + engine);
+	}
+}
@@ -0,0 +1,97 @@
+package models;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * The number of photos taken in a day or a month, a bar of the timeline.
+ * Periods are in UTC.
+ *
+ */
+public class TimelineBucket {
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	public static enum Period {
+		DAY("yyyy-MM-dd"), MONTH("yyyy-MM");
+
+		private final String labelFormat;
+
+		private Period(String labelFormat) {
+			this.labelFormat = labelFormat;
+		}
+
+		/**
+		 * @param date
+		 * @return the start of the period holding the date
+		 */
+		public long startOf(long date) {
+			Calendar calendar = Calendar.getInstance(UTC);
+			calendar.setTimeInMillis(date);
+			if (this == MONTH) calendar.set(Calendar.DAY_OF_MONTH, 1);
+			calendar.set(Calendar.HOUR_OF_DAY, 0);
+			calendar.set(Calendar.MINUTE, 0);
+			calendar.set(Calendar.SECOND, 0);
+			calendar.set(Calendar.MILLISECOND, 0);
+			return calendar.getTimeInMillis();
+		}
+
+		/**
+		 * @param start the start of a period
+		 * @return the start of the following period
+		 */
+		public long next(long start) {
+			Calendar calendar = Calendar.getInstance(UTC);
+			calendar.setTimeInMillis(start);
+			calendar.add(this == MONTH ? Calendar.MONTH : Calendar.DAY_OF_MONTH, 1);
+			return calendar.getTimeInMillis();
+		}
+
+		/**
+		 * @param start
+		 * @return the period as shown on the timeline
+		 */
+		public String label(long start) {
+			SimpleDateFormat format = new SimpleDateFormat(labelFormat);
+			format.setTimeZone(UTC);
+			return format.format(start);
+		}
+	}
+
+	private Period period;
+	private long start;
+	private long count;
+
+	public TimelineBucket(Period period, long start, long count) {
+		this.period = period;
+		this.start = start;
+		this.count = count;
+	}
+
+	public Period getPeriod() {
+		return period;
+	}
+
+	/**
+	 * @return the first millisecond of the period
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * @return the first millisecond after the period
+	 */
+	public long getEnd() {
+		return period.next(start);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public String getLabel() {
+		return period.label(start);
+	}
+}
@@ -0,0 +1,247 @@
+package tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import models.HBaseStorage;
+import models.Photo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import utils.ImageUpload;
+
+/**
+ * Imports a local directory of photos with an HFile bulk load rather than
+ * one upload per file. A MapReduce job, run in Hadoop local mode, decodes the
+ * images and encodes their derivatives on as many threads as there are cores
+ * and writes the photo rows in HFiles sorted by key, which are then handed
+ * over to the region servers whole. Hashes are claimed and large originals
+ * chunked as for an upload, so imported photos are de-duplicated against the
+ * stored ones. Once the HFiles are loaded the loaded photos are indexed, so
+ * they show up in searches and the timeline, and the claims and chunks of
+ * those that were not loaded, e.g. by a failed job, are released, so the
+ * import can be run again.
+ *
+ * Photos are titled by their file name and dated by their modification time.
+ * Run with
+ *   sbt "run-main tools.BulkImport <directory> [--threads n] [--output hfile directory]"
+ * The HFiles are written to the default file system of conf/core-site.xml,
+ * which must be the one HBase runs on.
+ *
+ */
+public class BulkImport {
+
+	static Logger log = LoggerFactory.getLogger(BulkImport.class);
+
+	public static enum Outcome {
+		IMPORTED, DUPLICATE, FAILED
+	}
+
+	private static final String[] EXTENSIONS = {".jpg", ".jpeg", ".png", ".gif", ".bmp"};
+
+	/**
+	 * Shared by the mapper threads, the job runs in this JVM
+	 */
+	private static HBaseStorage storage;
+
+	/**
+	 * The photos whose rows were written by the mappers, without their
+	 * contents, to be indexed or released once the HFiles are loaded
+	 */
+	private static final Queue<Photo> prepared = new ConcurrentLinkedQueue<Photo>();
+
+	/**
+	 * Turns the path of an image into the row of the photo
+	 */
+	public static class PhotoMapper extends Mapper<LongWritable, Text, ImmutableBytesWritable, Put> {
+
+		@Override
+		protected void map(LongWritable offset, Text line, Context context) throws IOException, InterruptedException {
+			File file = new File(line.toString());
+			Photo photo;
+			Put row;
+			try {
+				photo = ImageUpload.transcode(file, titleOf(file), file.lastModified());
+				row = storage.prepareBulkLoad(photo);
+			} catch (IOException e) {
+				log.warn("Skipping {}: {}", file, e.getMessage());
+				context.getCounter(Outcome.FAILED).increment(1);
+				return;
+			}
+			if (row == null) {
+				context.getCounter(Outcome.DUPLICATE).increment(1);
+				return;
+			}
+			Photo metadata = new Photo(photo.getTitle(), null, photo.getImageHash(), photo.getDate());
+			metadata.setPerceptualHash(photo.getPerceptualHash());
+			prepared.add(metadata);
+			context.write(new ImmutableBytesWritable(row.getRow()), row);
+			context.getCounter(Outcome.IMPORTED).increment(1);
+		}
+	}
+
+	private static String titleOf(File file) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	private static boolean isImage(File file) {
+		String name = file.getName().toLowerCase(Locale.ENGLISH);
+		for (String extension : EXTENSIONS) {
+			if (name.endsWith(extension)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Write the paths of the images under a directory, one per line
+	 * @param directory
+	 * @param out
+	 * @return the number of images listed
+	 * @throws IOException
+	 */
+	private static int listImages(File directory, Writer out) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) throw new IOException("Cannot list " + directory);
+		int count = 0;
+		for (File file : files) {
+			if (file.isDirectory()) {
+				count += listImages(file, out);
+			} else if (isImage(file)) {
+				out.write(file.getAbsolutePath());
+				out.write('\n');
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("Usage: BulkImport <directory> [--threads n] [--output hfile directory]");
+			System.exit(1);
+		}
+		File directory = new File(args[0]);
+		int threads = Runtime.getRuntime().availableProcessors();
+		String output = "/tmp/photo-import-" + System.currentTimeMillis();
+		for (int i = 1; i + 1 < args.length; i += 2) {
+			if (args[i].equals("--threads")) threads = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--output")) output = args[i + 1];
+			else throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+
+		File listing = File.createTempFile("photo-import", ".txt");
+		listing.deleteOnExit();
+		Writer out = new OutputStreamWriter(new FileOutputStream(listing), "UTF-8");
+		int images;
+		try {
+			images = listImages(directory, out);
+		} finally {
+			out.close();
+		}
+		log.info("Importing {} images from {} on {} threads", new Object[] {images, directory, threads});
+
+		boolean success;
+		storage = new HBaseStorage();
+		try {
+			Configuration conf = new Configuration(storage.getConfiguration());
+			// The images are local files, only local mode reads them
+			conf.set("mapred.job.tracker", "local");
+			HTable table = new HTable(conf, HBaseStorage.getPhotoTableName());
+			try {
+				Path hfiles = new Path(output);
+				success = run(conf, table, new Path(listing.toURI()), hfiles, threads);
+				if (success) {
+					try {
+						new LoadIncrementalHFiles(conf).doBulkLoad(hfiles, table);
+						log.info("Loaded the photos from {}", hfiles);
+					} catch (Exception e) {
+						log.error("Could not load the photos from " + hfiles, e);
+						success = false;
+					}
+				}
+			} finally {
+				try {
+					finish();
+				} finally {
+					table.close();
+				}
+			}
+		} finally {
+			storage.close();
+		}
+		if (!success) {
+			System.err.println("Import failed, the photos not loaded can be imported again");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Index the photos that were loaded and release the others
+	 * @throws IOException
+	 */
+	private static void finish() throws IOException {
+		int loaded = 0;
+		int released = 0;
+		Photo photo;
+		while ((photo = prepared.poll()) != null) {
+			if (storage.finishBulkLoad(photo)) loaded++;
+			else released++;
+		}
+		log.info("Indexed {} loaded photos and released {} not loaded", loaded, released);
+	}
+
+	/**
+	 * Run the job writing the HFiles
+	 * @return whether the job succeeded
+	 */
+	private static boolean run(Configuration conf, HTable table, Path listing, Path hfiles, int threads) throws Exception {
+		Job job = new Job(conf, "Photo import");
+		job.setJarByClass(BulkImport.class);
+		job.setInputFormatClass(TextInputFormat.class);
+		FileInputFormat.addInputPath(job, listing);
+
+		// One map task reads the whole listing, its threads share the work
+		job.setMapperClass(MultithreadedMapper.class);
+		MultithreadedMapper.setMapperClass(job, PhotoMapper.class);
+		MultithreadedMapper.setNumberOfThreads(job, threads);
+		job.setMapOutputKeyClass(ImmutableBytesWritable.class);
+		job.setMapOutputValueClass(Put.class);
+
+		// Sorts the rows by the regions of the table and writes them as HFiles
+		HFileOutputFormat.configureIncrementalLoad(job, table);
+		FileOutputFormat.setOutputPath(job, hfiles);
+
+		boolean success = job.waitForCompletion(true);
+		Counters counters = job.getCounters();
+		log.info("Imported {} photos, {} duplicates and {} failures", new Object[] {
+				counters.findCounter(Outcome.IMPORTED).getValue(),
+				counters.findCounter(Outcome.DUPLICATE).getValue(),
+				counters.findCounter(Outcome.FAILED).getValue()});
+		return success;
+	}
+}
@@ -0,0 +1,143 @@
+package utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import play.libs.Akka;
+import play.libs.F;
+import akka.dispatch.Futures;
+
+/**
+ * A fixed size thread pool with a bounded queue, whose tasks complete Play
+ * promises. Tasks submitted while the queue is full are rejected rather than
+ * piling up, and the time tasks spend waiting in the queue is recorded.
+ *
+ */
+public class BoundedExecutor {
+
+	final static Logger log = LoggerFactory.getLogger(BoundedExecutor.class);
+	
+	private final String name;
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	
+	public BoundedExecutor(final String name, int threads, int queueSize) {
+		this.name = name;
+		ThreadFactory factory = new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), factory, new ThreadPoolExecutor.AbortPolicy());
+		log.info("Started {} pool with {} threads and a queue of {}", new Object[] {name, threads, queueSize});
+	}
+	
+	/**
+	 * Queue a task
+	 * @param task
+	 * @return a promise completed with the task's result or failure
+	 * @throws RejectedExecutionException if the queue is full
+	 */
+	public <T> F.Promise<T> submit(final Callable<T> task) {
+		final scala.concurrent.Promise<T> promise = Futures.<T>promise();
+		final long queued = System.nanoTime();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					recordWait(System.nanoTime() - queued);
+					try {
+						promise.success(task.call());
+					} catch (Throwable t) {
+						promise.failure(t);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			log.warn("{} queue is full, rejecting task", name);
+			throw e;
+		}
+		return Akka.asPromise(promise.future());
+	}
+	
+	private void recordWait(long waitNanos) {
+		started.incrementAndGet();
+		totalWaitNanos.addAndGet(waitNanos);
+		long max = maxWaitNanos.get();
+		while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+			max = maxWaitNanos.get();
+		}
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return the number of tasks waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+	
+	/**
+	 * @return the number of threads running a task
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+	
+	public long getCompletedCount() {
+		return executor.getCompletedTaskCount();
+	}
+	
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+	
+	/**
+	 * @return the mean time tasks waited in the queue, in milliseconds
+	 */
+	public double getMeanWaitMillis() {
+		long count = started.get();
+		return count == 0 ? 0 : totalWaitNanos.get() / 1e6 / count;
+	}
+	
+	/**
+	 * @return the longest time a task waited in the queue, in milliseconds
+	 */
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+	
+	public void shutdown() {
+		log.info("Shutting down {} pool", name);
+		executor.shutdown();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: queued=%d active=%d completed=%d rejected=%d meanWait=%.1fms maxWait=%.1fms",
+				name, getQueueDepth(), getActiveCount(), getCompletedCount(), getRejectedCount(),
+				getMeanWaitMillis(), getMaxWaitMillis());
+	}
+}
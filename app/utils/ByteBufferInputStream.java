@@ -0,0 +1,47 @@
+package utils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the remaining bytes of a buffer, e.g. a view of a memory mapped file,
+ * without copying them to the heap first
+ *
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * @param buffer read from its position to its limit, which it is moved along
+	 */
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public int read() {
+		return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) return 0;
+		if (!buffer.hasRemaining()) return -1;
+		int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+		buffer.position(buffer.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+}
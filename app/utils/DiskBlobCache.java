@@ -0,0 +1,308 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of immutable blobs kept in memory mapped segment files on local disk.
+ * The blobs live in the OS page cache rather than the Java heap, and the cache
+ * survives restarts as its index is rebuilt by scanning the segments on open.
+ *
+ * Blobs are appended to the newest segment. Once the segments exceed the disk
+ * budget the oldest segment is dropped as a whole, so eviction is first in first
+ * out by segment. Every record carries a checksum of its key and value, which
+ * makes records torn by a crash show up as the end of their segment.
+ *
+ * Cached blobs are read straight from the mapped segments, without copying
+ * them to the heap.
+ *
+ */
+public class DiskBlobCache {
+
+	static Logger log = LoggerFactory.getLogger(DiskBlobCache.class);
+
+	private static final int MAGIC = 0x50484f32; // "PHO2", checksums covering the key
+	private static final int HEADER_LENGTH = 4 + 4 + 4 + 8; // magic, key length, value length, checksum
+
+	/**
+	 * Wraps a byte[] key for use in the index
+	 */
+	private static class Key {
+		final byte[] bytes;
+
+		Key(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(bytes, ((Key) o).bytes);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(bytes);
+		}
+	}
+
+	/**
+	 * Where a blob is stored
+	 */
+	private static class Location {
+		final long segment;
+		final int offset;
+		final int length;
+
+		Location(long segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final File directory;
+	private final int segmentBytes;
+	private final int maxSegments;
+
+	private final ConcurrentHashMap<Key, Location> index = new ConcurrentHashMap<Key, Location>();
+	private final ConcurrentSkipListMap<Long, MappedByteBuffer> segments = new ConcurrentSkipListMap<Long, MappedByteBuffer>();
+	private long activeSegment;
+	private int writeOffset;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Open the cache in the given directory, indexing the blobs already in it
+	 * @param directory
+	 * @param maxBytes the disk budget of the cache
+	 * @param segmentBytes the size of a segment file, which bounds the size of a blob
+	 * @throws IOException
+	 */
+	public DiskBlobCache(File directory, long maxBytes, int segmentBytes) throws IOException {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create cache directory " + directory);
+		}
+		open();
+	}
+
+	/**
+	 * Map the existing segments and rebuild the index from their records
+	 * @throws IOException
+	 */
+	private synchronized void open() throws IOException {
+		TreeMap<Long, File> files = new TreeMap<Long, File>();
+		File[] listing = directory.listFiles();
+		for (File file : listing == null ? new File[0] : listing) {
+			String name = file.getName();
+			if (!name.startsWith("segment-") || !name.endsWith(".dat")) continue;
+			try {
+				files.put(Long.parseLong(name.substring(8, name.length() - 4)), file);
+			} catch (NumberFormatException e) {
+				log.warn("Ignoring unexpected file {} in the blob cache", file);
+			}
+		}
+
+		while (files.size() > maxSegments) {
+			Map.Entry<Long, File> oldest = files.pollFirstEntry();
+			oldest.getValue().delete();
+		}
+
+		for (Map.Entry<Long, File> entry : files.entrySet()) {
+			MappedByteBuffer buffer = map(entry.getValue());
+			segments.put(entry.getKey(), buffer);
+			activeSegment = entry.getKey();
+			writeOffset = scan(entry.getKey(), buffer);
+		}
+
+		if (segments.isEmpty()) {
+			startSegment(0);
+		}
+		log.info("Opened blob cache {} with {} blobs in {} segments", new Object[] {directory, index.size(), segments.size()});
+	}
+
+	/**
+	 * Index the valid records of a segment
+	 * @param segment
+	 * @param buffer
+	 * @return the offset just after the last valid record
+	 */
+	private int scan(long segment, ByteBuffer buffer) {
+		ByteBuffer view = buffer.duplicate();
+		int offset = 0;
+		while (offset + HEADER_LENGTH <= segmentBytes) {
+			view.position(offset);
+			if (view.getInt() != MAGIC) break;
+			int keyLength = view.getInt();
+			int valueLength = view.getInt();
+			long checksum = view.getLong();
+			int end = offset + HEADER_LENGTH + keyLength + valueLength;
+			if (keyLength < 0 || valueLength < 0 || end > segmentBytes || end < offset) break;
+
+			int keyOffset = view.position();
+			if (checksum(view, keyOffset, keyLength + valueLength) != checksum) break;
+			byte[] key = new byte[keyLength];
+			view.get(key);
+			int valueOffset = view.position();
+
+			index.put(new Key(key), new Location(segment, valueOffset, valueLength));
+			offset = end;
+		}
+		return offset;
+	}
+
+	/**
+	 * @param key
+	 * @return a read only view of the cached blob in its segment or null
+	 */
+	public ByteBuffer get(byte[] key) {
+		Location location = index.get(new Key(key));
+		MappedByteBuffer buffer = location == null ? null : segments.get(location.segment);
+		if (buffer == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+
+		ByteBuffer view = buffer.asReadOnlyBuffer();
+		view.position(location.offset);
+		view.limit(location.offset + location.length);
+		return view.slice();
+	}
+
+	/**
+	 * Append a blob to the cache, unless it is already cached. Blobs that do not
+	 * fit in a segment are not cached.
+	 * @param key
+	 * @param value
+	 */
+	public synchronized void put(byte[] key, byte[] value) {
+		Key indexKey = new Key(key);
+		if (index.containsKey(indexKey)) return;
+
+		int recordLength = HEADER_LENGTH + key.length + value.length;
+		if (recordLength > segmentBytes) return;
+
+		try {
+			if (writeOffset + recordLength > segmentBytes) startSegment(activeSegment + 1);
+
+			ByteBuffer view = segments.get(activeSegment).duplicate();
+			int keyOffset = writeOffset + HEADER_LENGTH;
+			view.position(keyOffset);
+			view.put(key);
+			int valueOffset = view.position();
+			view.put(value);
+			long checksum = checksum(view, keyOffset, key.length + value.length);
+
+			// The header goes last, so a partly written record is never valid
+			view.position(writeOffset);
+			view.putInt(MAGIC);
+			view.putInt(key.length);
+			view.putInt(value.length);
+			view.putLong(checksum);
+
+			index.put(indexKey, new Location(activeSegment, valueOffset, value.length));
+			writeOffset += recordLength;
+		} catch (IOException e) {
+			log.error("Could not write to the blob cache", e);
+		}
+	}
+
+	/**
+	 * Start a new segment, dropping the oldest segment if over budget
+	 * @param segment
+	 * @throws IOException
+	 */
+	private void startSegment(long segment) throws IOException {
+		segments.put(segment, map(segmentFile(segment)));
+		activeSegment = segment;
+		writeOffset = 0;
+
+		while (segments.size() > maxSegments) {
+			long oldest = segments.pollFirstEntry().getKey();
+			for (Iterator<Location> it = index.values().iterator(); it.hasNext();) {
+				if (it.next().segment == oldest) it.remove();
+			}
+			// The mapping stays valid for readers still holding it
+			if (!segmentFile(oldest).delete()) log.warn("Could not delete segment {}", oldest);
+			log.debug("Evicted segment {} from the blob cache", oldest);
+		}
+	}
+
+	private File segmentFile(long segment) {
+		return new File(directory, String.format("segment-%08d.dat", segment));
+	}
+
+	private MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// The mapping outlives the channel
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static long checksum(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		byte[] chunk = new byte[Math.min(length, 8192)];
+		CRC32 crc = new CRC32();
+		int remaining = length;
+		while (remaining > 0) {
+			int n = Math.min(remaining, chunk.length);
+			view.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+			remaining -= n;
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * @return the number of cached blobs
+	 */
+	public int getSize() {
+		return index.size();
+	}
+
+	/**
+	 * @return the disk space taken by the segments
+	 */
+	public long getDiskBytes() {
+		return (long) segments.size() * segmentBytes;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * Flush the segments to disk
+	 */
+	public synchronized void close() {
+		for (MappedByteBuffer buffer : segments.values()) buffer.force();
+	}
+}
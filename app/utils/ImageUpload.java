@@ -0,0 +1,247 @@
+package utils;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import models.Photo;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An uploaded image on its way to storage. The upload is read in a single pass
+ * which also computes its MD5 hash, so a JPEG upload is known by its final hash
+ * before it is decoded. Only uploads in other formats are re-encoded to JPEG.
+ *
+ * Uploads through the application, bulk imports and benchmarks all transcode
+ * images the same way, with the steps here.
+ *
+ */
+public class ImageUpload {
+
+	final static Logger log = LoggerFactory.getLogger(ImageUpload.class);
+
+	/**
+	 * Largest raster an upload is decoded into, bigger images are subsampled
+	 */
+	public static final long DECODE_PIXEL_BUDGET = Settings.getLong("photo.decode.maxPixels", 12000000L);
+
+	/**
+	 * Uploads with more pixels than this are rejected
+	 */
+	public static final long UPLOAD_MAX_PIXELS = Settings.getLong("photo.upload.maxPixels", 100000000L);
+
+	private byte[] contents;
+	private String hash;
+	private boolean jpeg;
+	private BufferedImage image;
+
+	private ImageUpload(byte[] contents, String hash) {
+		this.contents = contents;
+		this.hash = hash;
+		this.jpeg = isJpeg(contents);
+	}
+
+	/**
+	 * Read an uploaded file, hashing it while it is read
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static ImageUpload read(File file) throws IOException {
+		long length = file.length();
+		if (length > Integer.MAX_VALUE) throw new IOException("Image too large");
+
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		byte[] contents = new byte[(int) length];
+		DataInputStream in = new DataInputStream(new DigestInputStream(new FileInputStream(file), md));
+		try {
+			in.readFully(contents);
+		} finally {
+			in.close();
+		}
+		return new ImageUpload(contents, Hex.encodeHexString(md.digest()));
+	}
+
+	/**
+	 * Read, decode and downscale an image file as an upload of it would be
+	 * @param file
+	 * @param title
+	 * @param date
+	 * @return the photo to store, with its perceptual hash and derivatives
+	 * @throws IOException if the file is not an image that can be stored
+	 */
+	public static Photo transcode(File file, String title, long date) throws IOException {
+		ImageUpload upload = read(file);
+		Photo photo = upload.toPhoto(title, date);
+		upload.addDerivatives(photo);
+		return photo;
+	}
+
+	/**
+	 * @return true if the upload is a JPEG and will be stored as is
+	 */
+	public boolean isJpeg() {
+		return jpeg;
+	}
+
+	/**
+	 * @return the MD5 hash of the contents that will be stored. For uploads
+	 * that are not JPEG this changes once they are decoded and re-encoded.
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * @return the JPEG contents to store
+	 */
+	public byte[] getContents() {
+		return contents;
+	}
+
+	/**
+	 * Decode the upload within the configured limits
+	 * @return the decoded, possibly subsampled, image
+	 * @throws IOException if the upload is not a readable image or is too large
+	 */
+	public BufferedImage decode() throws IOException {
+		return decode(DECODE_PIXEL_BUDGET, UPLOAD_MAX_PIXELS);
+	}
+
+	/**
+	 * Decode the upload. The dimensions are read from the image header first:
+	 * images above maxPixels are rejected and the rest are decoded subsampled
+	 * so that the raster never holds more than pixelBudget pixels. Uploads that
+	 * are not JPEG are re-encoded from that raster, replacing the original bytes
+	 * and their hash.
+	 * @param pixelBudget
+	 * @param maxPixels
+	 * @return the decoded, possibly subsampled, image
+	 * @throws IOException if the upload is not a readable image or is too large
+	 */
+	public BufferedImage decode(long pixelBudget, long maxPixels) throws IOException {
+		if (image != null) return image;
+
+		ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(contents));
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext()) {
+			in.close();
+			throw new IOException("Unsupported image format");
+		}
+		
+		ImageReader reader = readers.next();
+		try {
+			reader.setInput(in, true, true);
+			int width = reader.getWidth(0);
+			int height = reader.getHeight(0);
+			if ((long) width * height > maxPixels) {
+				throw new IOException("Image of " + width + "x" + height + " pixels is too large");
+			}
+			
+			ImageReadParam param = reader.getDefaultReadParam();
+			int subsampling = subsampling(width, height, pixelBudget);
+			if (subsampling > 1) {
+				log.debug("Decoding {}x{} upload {} with subsampling {}", new Object[] {width, height, hash, subsampling});
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+			}
+			image = reader.read(0, param);
+		} finally {
+			reader.dispose();
+			in.close();
+		}
+
+		if (!jpeg) {
+			log.debug("Re-encoding upload {} to JPEG", hash);
+			// Drop the original before encoding so only one copy is ever held
+			contents = null;
+			contents = Utils.toJpeg(Utils.toRgb(image));
+			try {
+				hash = Utils.md5(contents);
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+			jpeg = true;
+		}
+		return image;
+	}
+
+	/**
+	 * @param title
+	 * @param date
+	 * @return the photo of the decoded upload with its perceptual hash, but
+	 * without derivatives
+	 * @throws IOException if the upload cannot be decoded
+	 */
+	public Photo toPhoto(String title, long date) throws IOException {
+		BufferedImage image = decode();
+		Photo photo = new Photo(title, contents, hash, date);
+		photo.setPerceptualHash(PerceptualHash.of(image));
+		return photo;
+	}
+
+	/**
+	 * Encode the derivatives of the decoded upload into its photo
+	 * @param photo
+	 * @throws IOException if the upload cannot be decoded
+	 */
+	public void addDerivatives(Photo photo) throws IOException {
+		BufferedImage image = decode();
+		for (Photo.Size size : Photo.Size.values()) {
+			if (!size.isDerivative()) continue;
+			photo.setContents(size, Utils.toJpeg(Utils.scaleToFit(image, size.getMaxDimension())));
+		}
+	}
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param pixelBudget
+	 * @return the smallest subsampling step that fits the image in the budget
+	 */
+	static int subsampling(int width, int height, long pixelBudget) {
+		int step = Math.max(1, (int) Math.sqrt((double) width * height / pixelBudget));
+		while (pixels(width, step) * pixels(height, step) > pixelBudget) step++;
+		return step;
+	}
+
+	/**
+	 * @param length
+	 * @param step
+	 * @return the number of pixels a subsampled read keeps out of length
+	 */
+	private static long pixels(int length, int step) {
+		return (length + step - 1) / step;
+	}
+
+	/**
+	 * @param data
+	 * @return true if the data starts with the JPEG start of image marker
+	 */
+	private static boolean isJpeg(byte[] data) {
+		return data.length > 3
+				&& (data[0] & 0xff) == 0xff
+				&& (data[1] & 0xff) == 0xd8
+				&& (data[2] & 0xff) == 0xff;
+	}
+}
@@ -0,0 +1,119 @@
+package utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least recently used cache bounded by the total weight of its entries, e.g.
+ * their size in bytes, rather than by their number. Entries heavier than a
+ * quarter of the capacity are never admitted, so that a single large value
+ * cannot flush the whole cache.
+ *
+ */
+public class LruCache<K, V> {
+
+	private static class Entry<V> {
+		final V value;
+		final long weight;
+		
+		Entry(V value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+	
+	private final long capacity;
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+	private long weight;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	
+	/**
+	 * @param capacity the maximum total weight of the cached entries
+	 */
+	public LruCache(long capacity) {
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * @param key
+	 * @return the cached value or null
+	 */
+	public V get(K key) {
+		Entry<V> entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+	
+	/**
+	 * Cache a value, evicting the least recently used entries to make room
+	 * @param key
+	 * @param value
+	 * @param valueWeight
+	 */
+	public void put(K key, V value, long valueWeight) {
+		if (valueWeight > capacity / 4) return;
+		
+		synchronized (this) {
+			Entry<V> previous = entries.put(key, new Entry<V>(value, valueWeight));
+			if (previous != null) weight -= previous.weight;
+			weight += valueWeight;
+			
+			Iterator<Map.Entry<K, Entry<V>>> eldest = entries.entrySet().iterator();
+			while (weight > capacity && eldest.hasNext()) {
+				weight -= eldest.next().getValue().weight;
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+	
+	public synchronized void remove(K key) {
+		Entry<V> previous = entries.remove(key);
+		if (previous != null) weight -= previous.weight;
+	}
+	
+	public long getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * @return the total weight of the cached entries
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+	
+	public synchronized int getSize() {
+		return entries.size();
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("entries=%d weight=%d/%d hits=%d misses=%d evictions=%d",
+				getSize(), getWeight(), capacity, getHits(), getMisses(), getEvictions());
+	}
+}
@@ -0,0 +1,236 @@
+package utils;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The application's metrics, rendered in the Prometheus text format. Timers
+ * count into fixed power of two buckets and counters are single atomics, so
+ * recording costs a couple of uncontended atomic increments and metrics can
+ * stay on in production.
+ *
+ * Metrics are named like name{label="value"} and created on first use.
+ *
+ */
+public class Metrics {
+
+	private static final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+	private static final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private static final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private static final ConcurrentHashMap<String, Gauge> readCounters = new ConcurrentHashMap<String, Gauge>();
+
+	/**
+	 * A value read when the metrics are rendered
+	 */
+	public static interface Gauge {
+		double value();
+	}
+
+	/**
+	 * A monotonic count of events or bytes
+	 */
+	public static class Counter {
+		private final AtomicLong count = new AtomicLong();
+
+		public void inc() {
+			count.incrementAndGet();
+		}
+
+		public void add(long n) {
+			count.addAndGet(n);
+		}
+
+		public long get() {
+			return count.get();
+		}
+	}
+
+	/**
+	 * A histogram of durations. Bucket i counts durations of less than 2^(i + 16)
+	 * nanoseconds, from 65 microseconds up to 37 minutes, and the last counts the rest.
+	 */
+	public static class Timer {
+		private static final int BUCKETS = 27;
+		private static final int FIRST_BUCKET_SHIFT = 16;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		/**
+		 * @return the start of a measurement, passed back to {@link #stop(long)}
+		 */
+		public long start() {
+			return System.nanoTime();
+		}
+
+		/**
+		 * Record the time since the given start
+		 * @param start
+		 */
+		public void stop(long start) {
+			update(System.nanoTime() - start);
+		}
+
+		public void update(long nanos) {
+			int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, nanos) >>> FIRST_BUCKET_SHIFT);
+			buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public double getMeanMillis() {
+			long n = count.get();
+			return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+		}
+	}
+
+	private Metrics() {
+	}
+
+	/**
+	 * @param name
+	 * @param labels pairs of label names and values
+	 * @return the timer of the given name and labels
+	 */
+	public static Timer timer(String name, String... labels) {
+		String key = key(name, labels);
+		Timer timer = timers.get(key);
+		if (timer == null) {
+			Timer created = new Timer();
+			timer = timers.putIfAbsent(key, created);
+			if (timer == null) timer = created;
+		}
+		return timer;
+	}
+
+	/**
+	 * @param name
+	 * @param labels pairs of label names and values
+	 * @return the counter of the given name and labels
+	 */
+	public static Counter counter(String name, String... labels) {
+		String key = key(name, labels);
+		Counter counter = counters.get(key);
+		if (counter == null) {
+			Counter created = new Counter();
+			counter = counters.putIfAbsent(key, created);
+			if (counter == null) counter = created;
+		}
+		return counter;
+	}
+
+	/**
+	 * Register a counter kept elsewhere, e.g. by a cache, which is read when
+	 * the metrics are rendered, replacing any of the same name and labels
+	 * @param value read on rendering, never decreasing
+	 * @param name
+	 * @param labels pairs of label names and values
+	 */
+	public static void counter(Gauge value, String name, String... labels) {
+		readCounters.put(key(name, labels), value);
+	}
+
+	/**
+	 * Register a gauge, replacing any of the same name and labels
+	 * @param gauge
+	 * @param name
+	 * @param labels pairs of label names and values
+	 */
+	public static void gauge(Gauge gauge, String name, String... labels) {
+		gauges.put(key(name, labels), gauge);
+	}
+
+	private static String key(String name, String... labels) {
+		if (labels.length == 0) return name;
+		assert labels.length % 2 == 0 : "Labels come in name and value pairs";
+		StringBuilder key = new StringBuilder(name).append('{');
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0) key.append(',');
+			key.append(labels[i]).append("=\"").append(labels[i + 1]).append('"');
+		}
+		return key.append('}').toString();
+	}
+
+	/**
+	 * @return all metrics in the Prometheus text format
+	 */
+	public static String render() {
+		StringBuilder out = new StringBuilder(8192);
+		String type = null;
+
+		Map<String, Number> counterValues = new TreeMap<String, Number>(BY_NAME);
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) counterValues.put(entry.getKey(), entry.getValue().get());
+		for (Map.Entry<String, Gauge> entry : readCounters.entrySet()) counterValues.put(entry.getKey(), entry.getValue().value());
+		for (Map.Entry<String, Number> entry : counterValues.entrySet()) {
+			type = typeLine(out, type, entry.getKey(), "counter");
+			out.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		}
+
+		for (Map.Entry<String, Gauge> entry : sorted(gauges).entrySet()) {
+			type = typeLine(out, type, entry.getKey(), "gauge");
+			out.append(entry.getKey()).append(' ').append(entry.getValue().value()).append('\n');
+		}
+
+		for (Map.Entry<String, Timer> entry : sorted(timers).entrySet()) {
+			type = typeLine(out, type, entry.getKey(), "histogram");
+			String name = baseName(entry.getKey());
+			String labels = entry.getKey().substring(name.length());
+			String inner = labels.isEmpty() ? "" : labels.substring(1, labels.length() - 1) + ",";
+			Timer timer = entry.getValue();
+
+			long cumulative = 0;
+			for (int i = 0; i < Timer.BUCKETS - 1; i++) {
+				cumulative += timer.buckets.get(i);
+				double le = (double) (1L << (i + Timer.FIRST_BUCKET_SHIFT)) / 1e9;
+				out.append(name).append("_bucket{").append(inner).append("le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+			}
+			// Buckets and count are read separately, +Inf must not be below the finite buckets
+			long count = Math.max(cumulative + timer.buckets.get(Timer.BUCKETS - 1), timer.count.get());
+			out.append(name).append("_bucket{").append(inner).append("le=\"+Inf\"} ").append(count).append('\n');
+			out.append(name).append("_sum").append(labels).append(' ').append(timer.totalNanos.get() / 1e9).append('\n');
+			out.append(name).append("_count").append(labels).append(' ').append(count).append('\n');
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return the metrics sorted so that those of the same name are together
+	 */
+	private static <T> Map<String, T> sorted(Map<String, T> metrics) {
+		Map<String, T> sorted = new TreeMap<String, T>(BY_NAME);
+		sorted.putAll(metrics);
+		return sorted;
+	}
+	
+	private static final Comparator<String> BY_NAME = new Comparator<String>() {
+		@Override
+		public int compare(String a, String b) {
+			int byName = baseName(a).compareTo(baseName(b));
+			return byName != 0 ? byName : a.compareTo(b);
+		}
+	};
+
+	/**
+	 * Write the TYPE line of a metric unless it follows one of the same name
+	 * @return the name of the metric
+	 */
+	private static String typeLine(StringBuilder out, String previous, String key, String type) {
+		String name = baseName(key);
+		if (!name.equals(previous)) out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		return name;
+	}
+
+	private static String baseName(String key) {
+		int brace = key.indexOf('{');
+		return brace < 0 ? key : key.substring(0, brace);
+	}
+}
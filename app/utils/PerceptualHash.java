@@ -0,0 +1,112 @@
+package utils;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+/**
+ * 64 bit perceptual hashes of images, which stay within a small Hamming
+ * distance of each other for resized or re-compressed copies of a picture.
+ * This is a difference hash: the image is shrunk to 9x8 grey pixels and each bit
+ * tells whether a pixel is brighter than its right neighbour.
+ *
+ * For lookups the hash is split in {@link #CHUNKS} chunks of 16 bits. Two hashes
+ * within distance k have at least one chunk within distance k / CHUNKS of the
+ * other's, so near neighbours are found by probing the few chunk values around
+ * each chunk of a hash rather than comparing against every hash.
+ *
+ */
+public class PerceptualHash {
+
+	public static final int CHUNKS = 4;
+	public static final int CHUNK_BITS = 64 / CHUNKS;
+
+	/**
+	 * The largest distance searched by probing chunks within distance 2
+	 */
+	public static final int MAX_SEARCH_DISTANCE = 3 * CHUNKS - 1;
+
+	private PerceptualHash() {
+	}
+
+	/**
+	 * @param image
+	 * @return the difference hash of the image
+	 */
+	public static long of(BufferedImage image) {
+		// Shrinking in steps first keeps the tiny image representative
+		BufferedImage small = Utils.scaleToFit(image, 64);
+		BufferedImage grey = new BufferedImage(9, 8, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = grey.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(small, 0, 0, 9, 8, null);
+		g.dispose();
+
+		Raster pixels = grey.getRaster();
+		long hash = 0;
+		for (int y = 0; y < 8; y++) {
+			for (int x = 0; x < 8; x++) {
+				hash <<= 1;
+				if (pixels.getSample(x, y, 0) > pixels.getSample(x + 1, y, 0)) hash |= 1;
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return the number of bits in which the hashes differ
+	 */
+	public static int distance(long a, long b) {
+		return Long.bitCount(a ^ b);
+	}
+
+	/**
+	 * @param hash
+	 * @param index
+	 * @return the index-th chunk of 16 bits of the hash
+	 */
+	public static int chunk(long hash, int index) {
+		return (int) (hash >>> (index * CHUNK_BITS)) & 0xffff;
+	}
+
+	/**
+	 * @param chunk
+	 * @param radius
+	 * @return all chunk values within the given Hamming distance of the chunk, itself included
+	 */
+	public static int[] chunksWithin(int chunk, int radius) {
+		assert radius >= 0 && radius <= 2 : "Radius " + radius + " probes too many chunks";
+		int count = 1 + (radius >= 1 ? CHUNK_BITS : 0) + (radius >= 2 ? CHUNK_BITS * (CHUNK_BITS - 1) / 2 : 0);
+		int[] chunks = new int[count];
+		int n = 0;
+		chunks[n++] = chunk;
+		if (radius >= 1) {
+			for (int i = 0; i < CHUNK_BITS; i++) {
+				chunks[n++] = chunk ^ (1 << i);
+			}
+		}
+		if (radius >= 2) {
+			for (int i = 0; i < CHUNK_BITS; i++) {
+				for (int j = i + 1; j < CHUNK_BITS; j++) {
+					chunks[n++] = chunk ^ (1 << i) ^ (1 << j);
+				}
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * @param maxDistance
+	 * @return the radius to probe around each chunk to find hashes within maxDistance
+	 * @throws IllegalArgumentException if the distance is too large to search
+	 */
+	public static int probeRadius(int maxDistance) {
+		if (maxDistance < 0 || maxDistance > MAX_SEARCH_DISTANCE) {
+			throw new IllegalArgumentException("Distance must be between 0 and " + MAX_SEARCH_DISTANCE);
+		}
+		return maxDistance / CHUNKS;
+	}
+}
@@ -0,0 +1,121 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import models.Comment;
+
+/**
+ * Scores the sentiment of short texts by adding up the scores of their words
+ * in a lexicon. A word following a negation within a few words counts with the
+ * opposite sign. Scoring only reads the lexicon and is safe to run from many
+ * threads at once.
+ *
+ */
+public class SentimentLexicon {
+
+	private static final Set<String> NEGATIONS = new HashSet<String>();
+	static {
+		for (String word : new String[] {"not", "no", "never", "nothing", "hardly", "isn't", "wasn't",
+				"aren't", "don't", "doesn't", "didn't", "can't", "couldn't", "won't", "nor", "without"}) {
+			NEGATIONS.add(word);
+		}
+	}
+	
+	/**
+	 * How many words after a negation are negated
+	 */
+	private static final int NEGATION_SCOPE = 3;
+	
+	private final Map<String, Integer> scores;
+	
+	public SentimentLexicon(Map<String, Integer> scores) {
+		this.scores = scores;
+	}
+	
+	/**
+	 * Read a lexicon of "word score" lines, ignoring blank lines and lines
+	 * starting with #
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static SentimentLexicon read(InputStream in) throws IOException {
+		Map<String, Integer> scores = new HashMap<String, Integer>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				String[] parts = line.split("\\s+");
+				if (parts.length != 2) throw new IOException("Malformed lexicon line: " + line);
+				scores.put(parts[0].toLowerCase(), Integer.valueOf(parts[1]));
+			}
+		} finally {
+			reader.close();
+		}
+		return new SentimentLexicon(scores);
+	}
+	
+	/**
+	 * Read the lexicon from the classpath
+	 * @param resource
+	 * @return
+	 * @throws IOException if the lexicon is missing or malformed
+	 */
+	public static SentimentLexicon fromResource(String resource) throws IOException {
+		InputStream in = SentimentLexicon.class.getClassLoader().getResourceAsStream(resource);
+		if (in == null) throw new IOException("Sentiment lexicon " + resource + " not found");
+		return read(in);
+	}
+	
+	/**
+	 * @param text
+	 * @return the sum of the scores of the words of the text
+	 */
+	public int score(String text) {
+		if (text == null) return 0;
+		int score = 0;
+		int negated = 0;
+		int start = -1;
+		String lower = text.toLowerCase();
+		for (int i = 0; i <= lower.length(); i++) {
+			char c = i < lower.length() ? lower.charAt(i) : ' ';
+			boolean wordChar = Character.isLetter(c) || c == '\'';
+			if (wordChar) {
+				if (start < 0) start = i;
+				continue;
+			}
+			if (start < 0) continue;
+			
+			String word = lower.substring(start, i);
+			start = -1;
+			if (NEGATIONS.contains(word)) {
+				negated = NEGATION_SCOPE;
+				continue;
+			}
+			Integer wordScore = scores.get(word);
+			if (wordScore != null) score += negated > 0 ? -wordScore : wordScore;
+			if (negated > 0) negated--;
+		}
+		return score;
+	}
+	
+	/**
+	 * @param text
+	 * @return the sentiment of the text
+	 */
+	public Comment.Sentiment classify(String text) {
+		int score = score(text);
+		if (score > 0) return Comment.Sentiment.POSITIVE;
+		if (score < 0) return Comment.Sentiment.NEGATIVE;
+		return Comment.Sentiment.NEUTRAL;
+	}
+}
@@ -0,0 +1,45 @@
+package utils;
+
+import play.Configuration;
+import play.Play;
+
+/**
+ * Typed access to the settings of application.conf with defaults. Falls back
+ * to the defaults when no application is running, e.g. in command line tools.
+ *
+ */
+public class Settings {
+
+	public static int getInt(String key, int defaultValue) {
+		Configuration conf = configuration();
+		Integer value = conf == null ? null : conf.getInt(key);
+		return value == null ? defaultValue : value;
+	}
+	
+	public static long getLong(String key, long defaultValue) {
+		Configuration conf = configuration();
+		Long value = conf == null ? null : conf.getLong(key);
+		return value == null ? defaultValue : value;
+	}
+	
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		Configuration conf = configuration();
+		Boolean value = conf == null ? null : conf.getBoolean(key);
+		return value == null ? defaultValue : value;
+	}
+	
+	public static String getString(String key, String defaultValue) {
+		Configuration conf = configuration();
+		String value = conf == null ? null : conf.getString(key);
+		return value == null ? defaultValue : value;
+	}
+	
+	private static Configuration configuration() {
+		try {
+			return Play.application().configuration();
+		} catch (RuntimeException e) {
+			// No started application
+			return null;
+		}
+	}
+}
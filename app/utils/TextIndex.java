@@ -0,0 +1,104 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splitting of titles, comments and queries into the terms of the full text
+ * index. Terms are lower cased runs of letters and digits, without the most
+ * common English words, which would only make huge index rows.
+ *
+ * In a query a term ending with a star matches every term it prefixes.
+ *
+ */
+public class TextIndex {
+
+	public static final char PREFIX_MARK = '*';
+
+	/**
+	 * Longer runs are cut, they are not words anyone searches for whole
+	 */
+	public static final int MAX_TERM_LENGTH = 32;
+
+	/**
+	 * A title term weighs as much as this many comment terms
+	 */
+	public static final int TITLE_WEIGHT = 3;
+
+	private static final Set<String> STOP_WORDS = new HashSet<String>(Arrays.asList(
+			"an", "and", "are", "as", "at", "be", "by", "for", "from", "has", "in", "is", "it",
+			"its", "of", "on", "or", "that", "the", "this", "to", "was", "were", "with"));
+
+	private TextIndex() {
+	}
+
+	/**
+	 * @param text
+	 * @param weight added for every occurrence of a term
+	 * @return the terms of the text with their weights, in order of first occurrence
+	 */
+	public static Map<String, Integer> termWeights(String text, int weight) {
+		Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+		if (text == null) return weights;
+		for (String term : split(text, false)) {
+			Integer previous = weights.get(term);
+			weights.put(term, previous == null ? weight : previous + weight);
+		}
+		return weights;
+	}
+
+	/**
+	 * @param query
+	 * @return the distinct terms of a query, prefix terms keeping their trailing mark
+	 */
+	public static List<String> queryTerms(String query) {
+		List<String> terms = new ArrayList<String>();
+		if (query == null) return terms;
+		for (String term : split(query, true)) {
+			if (!terms.contains(term)) terms.add(term);
+		}
+		return terms;
+	}
+
+	/**
+	 * @param term
+	 * @return whether a query term matches the terms it prefixes
+	 */
+	public static boolean isPrefix(String term) {
+		return term.charAt(term.length() - 1) == PREFIX_MARK;
+	}
+
+	/**
+	 * @param term a prefix query term
+	 * @return the prefix without its mark
+	 */
+	public static String prefixOf(String term) {
+		return term.substring(0, term.length() - 1);
+	}
+
+	private static List<String> split(String text, boolean markPrefixes) {
+		List<String> terms = new ArrayList<String>();
+		int length = text.length();
+		int i = 0;
+		while (i < length) {
+			while (i < length && !Character.isLetterOrDigit(text.charAt(i))) i++;
+			int start = i;
+			while (i < length && Character.isLetterOrDigit(text.charAt(i))) i++;
+			if (i - start < 2) continue;
+
+			String term = text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ENGLISH);
+			if (markPrefixes && i < length && text.charAt(i) == PREFIX_MARK) {
+				terms.add(term + PREFIX_MARK);
+			} else if (!STOP_WORDS.contains(term)) {
+				terms.add(term);
+			}
+		}
+		return terms;
+	}
+}
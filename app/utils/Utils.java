@@ -1,9 +1,18 @@
 package utils;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
+import javax.imageio.ImageIO;
+
+import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
@@ -37,6 +46,111 @@ public class Utils {
 		return Hex.encodeHexString(hash);
 	}
 	
+	/**
+	 * @param key
+	 * @return an opaque, URL safe cursor pointing at the given row key
+	 */
+	public static String encodeCursor(byte[] key) {
+		return Hex.encodeHexString(key);
+	}
+	
+	/**
+	 * @param cursor
+	 * @return the row key a cursor points at
+	 * @throws IllegalArgumentException if the cursor is malformed
+	 */
+	public static byte[] decodeCursor(String cursor) {
+		try {
+			return Hex.decodeHex(cursor.toCharArray());
+		} catch (DecoderException e) {
+			throw new IllegalArgumentException("Malformed cursor " + cursor, e);
+		}
+	}
+	
+	/**
+	 * @param key
+	 * @return the smallest row key sorting strictly after the given one
+	 */
+	public static byte[] rowAfter(byte[] key) {
+		return Arrays.copyOf(key, key.length + 1);
+	}
+	
+	/**
+	 * @param prefix
+	 * @return the smallest row key sorting after every key with the given
+	 * prefix, or an empty key, the end of the table, if there is none
+	 */
+	public static byte[] rowAfterPrefix(byte[] prefix) {
+		for (int i = prefix.length - 1; i >= 0; i--) {
+			if (prefix[i] != (byte) 0xff) {
+				byte[] stop = Arrays.copyOf(prefix, i + 1);
+				stop[i]++;
+				return stop;
+			}
+		}
+		return new byte[0];
+	}
+	
+	/**
+	 * Downscale an image so that its longest side is at most maxDimension
+	 * pixels. The image is halved repeatedly before the final resize, which
+	 * keeps bilinear filtering from aliasing on large reductions.
+	 * @param image
+	 * @param maxDimension
+	 * @return an RGB image that fits in the given bounds
+	 */
+	public static BufferedImage scaleToFit(BufferedImage image, int maxDimension) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		double scale = Math.min(1.0, (double) maxDimension / Math.max(width, height));
+		int targetWidth = Math.max(1, (int) Math.round(width * scale));
+		int targetHeight = Math.max(1, (int) Math.round(height * scale));
+		
+		BufferedImage current = image;
+		do {
+			width = Math.max(targetWidth, width / 2);
+			height = Math.max(targetHeight, height / 2);
+			BufferedImage next = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = next.createGraphics();
+			try {
+				g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g.drawImage(current, 0, 0, width, height, null);
+			} finally {
+				g.dispose();
+			}
+			current = next;
+		} while (width != targetWidth || height != targetHeight);
+		return current;
+	}
+	
+	/**
+	 * @param image
+	 * @return the image itself if it is RGB, otherwise a copy flattened to RGB
+	 * as JPEG has no alpha channel
+	 */
+	public static BufferedImage toRgb(BufferedImage image) {
+		if (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_3BYTE_BGR) return image;
+		BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = rgb.createGraphics();
+		try {
+			g.drawImage(image, 0, 0, Color.WHITE, null);
+		} finally {
+			g.dispose();
+		}
+		return rgb;
+	}
+	
+	/**
+	 * @param image
+	 * @return the image encoded as JPEG
+	 * @throws IOException
+	 */
+	public static byte[] toJpeg(BufferedImage image) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (!ImageIO.write(image, "jpg", out)) throw new IOException("No JPEG writer available");
+		return out.toByteArray();
+	}
+	
 	/**
 	 * Get the named HTable from HBase, creating it if necessary
 	 * @param tableName
@@ -46,22 +160,36 @@ public class Utils {
 	 * @throws IOException
 	 */
 	public static void createHTable(String tableName, String[] families, Configuration conf) throws IOException  {
-		assert tableName != null;
-		assert families != null;
 		HBaseAdmin admin = new HBaseAdmin(conf);
 		try {
-			if (!admin.tableExists(tableName)) {
-				log.debug("Creating table {}", tableName);
-				HTableDescriptor tableDesc = new HTableDescriptor(tableName);
-				for (int i = 0; i < families.length; i++)
-					tableDesc.addFamily(new HColumnDescriptor(families[i]));
-				admin.createTable(tableDesc);
-			}
+			createHTable(admin, tableName, families, new byte[0][]);
 		} finally {
 			admin.close();
 		}
 	}
 	
+	/**
+	 * Get the named HTable from HBase, creating it pre-split at the given
+	 * keys if necessary
+	 * @param admin
+	 * @param tableName
+	 * @param families
+	 * @param splitKeys the start keys of all regions but the first
+	 * @throws IOException
+	 */
+	public static void createHTable(HBaseAdmin admin, String tableName, String[] families, byte[][] splitKeys) throws IOException  {
+		assert tableName != null;
+		assert families != null;
+		if (!admin.tableExists(tableName)) {
+			log.debug("Creating table {} with {} regions", tableName, splitKeys.length + 1);
+			HTableDescriptor tableDesc = new HTableDescriptor(tableName);
+			for (int i = 0; i < families.length; i++)
+				tableDesc.addFamily(new HColumnDescriptor(families[i]));
+			if (splitKeys.length == 0) admin.createTable(tableDesc);
+			else admin.createTable(tableDesc, splitKeys);
+		}
+	}
+	
 	/**
 	 * Check if a table exists in HBase
 	 * @param tableName
@@ -0,0 +1,68 @@
+package utils;
+
+/**
+ * The application's dedicated worker pools, sized from application.conf.
+ * Pools are started on first use and stopped when the application stops.
+ *
+ */
+public class WorkerPools {
+
+	private static BoundedExecutor transcoder;
+	private static BoundedExecutor storage;
+	
+	/**
+	 * @return the pool decoding and encoding uploaded images
+	 */
+	public static synchronized BoundedExecutor transcoder() {
+		if (transcoder == null) {
+			transcoder = new BoundedExecutor("transcoder",
+					Settings.getInt("transcoder.threads", Runtime.getRuntime().availableProcessors()),
+					Settings.getInt("transcoder.queueSize", 64));
+			registerMetrics(transcoder);
+		}
+		return transcoder;
+	}
+	
+	/**
+	 * @return the pool running blocking storage calls, so that slow storage
+	 * ties up these threads instead of the ones serving requests
+	 */
+	public static synchronized BoundedExecutor storage() {
+		if (storage == null) {
+			storage = new BoundedExecutor("storage-io",
+					Settings.getInt("storage.io.threads", 32),
+					Settings.getInt("storage.io.queueSize", 256));
+			registerMetrics(storage);
+		}
+		return storage;
+	}
+	
+	/**
+	 * Expose the statistics of a pool as metrics
+	 * @param pool
+	 */
+	private static void registerMetrics(final BoundedExecutor pool) {
+		Metrics.gauge(new Metrics.Gauge() {
+			public double value() { return pool.getQueueDepth(); }
+		}, "executor_queue_depth", "pool", pool.getName());
+		Metrics.gauge(new Metrics.Gauge() {
+			public double value() { return pool.getActiveCount(); }
+		}, "executor_active_threads", "pool", pool.getName());
+		Metrics.counter(new Metrics.Gauge() {
+			public double value() { return pool.getCompletedCount(); }
+		}, "executor_completed_tasks_total", "pool", pool.getName());
+		Metrics.counter(new Metrics.Gauge() {
+			public double value() { return pool.getRejectedCount(); }
+		}, "executor_rejected_tasks_total", "pool", pool.getName());
+		Metrics.gauge(new Metrics.Gauge() {
+			public double value() { return pool.getMeanWaitMillis() / 1000; }
+		}, "executor_mean_wait_seconds", "pool", pool.getName());
+	}
+	
+	public static synchronized void shutdown() {
+		if (transcoder != null) transcoder.shutdown();
+		if (storage != null) storage.shutdown();
+		transcoder = null;
+		storage = null;
+	}
+}
@@ -0,0 +1,51 @@
+package controllers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import models.PhotoInfo;
+import models.PhotoPage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import play.api.templates.Html;
+import play.core.j.JavaHelpers$;
+import play.mvc.Http;
+import play.test.Helpers;
+
+/**
+ * Rendering of a full page of the gallery
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RenderBenchmark {
+
+	private PhotoPage page;
+
+	@Setup
+	public void setUp() {
+		// The templates read the flash of the current request
+		Http.Context.current.set(JavaHelpers$.MODULE$.createJavaContext(Helpers.fakeRequest().getWrappedRequest()));
+
+		List<PhotoInfo> photos = new ArrayList<PhotoInfo>();
+		for (int i = 0; i < 20; i++) {
+			String hash = String.format("%032x", i);
+			photos.add(new PhotoInfo(new byte[40], hash, "Photo " + i, 1400000000000L + i));
+		}
+		page = new PhotoPage(photos, "00ff");
+	}
+
+	@Benchmark
+	public Html index() {
+		return views.html.index.render(page);
+	}
+}
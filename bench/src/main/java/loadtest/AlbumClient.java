@@ -0,0 +1,159 @@
+package loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives the album over HTTP the way a browser does. Redirects are not
+ * followed, so each call measures a single route. The photos found in the
+ * gallery are remembered to be viewed and commented on.
+ *
+ */
+public class AlbumClient {
+
+	private static final Pattern PHOTO_LINK = Pattern.compile("viewPhoto\\?id=([0-9a-f]{32})&(?:amp;)?date=(\\d+)");
+	private static final String BOUNDARY = "----loadtest7MA4YWxkTrZu0gW";
+
+	private final String baseUrl;
+	private final byte[] image;
+	private final List<String[]> photos = new CopyOnWriteArrayList<String[]>();
+	private final Random random = new Random();
+
+	/**
+	 * @param baseUrl
+	 * @param image the JPEG uploaded, made unique for every upload
+	 */
+	public AlbumClient(String baseUrl, byte[] image) {
+		this.baseUrl = baseUrl;
+		this.image = image;
+	}
+
+	/**
+	 * @return the number of known photos
+	 */
+	public int getPhotoCount() {
+		return photos.size();
+	}
+
+	/**
+	 * Upload a new photo. Trailing bytes after the end of the JPEG are ignored
+	 * by decoders but change its hash, so no upload is a duplicate.
+	 */
+	public boolean upload() throws IOException {
+		byte[] unique = new byte[16];
+		random.nextBytes(unique);
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream(image.length + 1024);
+		body.write(("--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"title\"\r\n\r\n"
+				+ "Load test\r\n"
+				+ "--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"data\"; filename=\"photo.jpg\"\r\n"
+				+ "Content-Type: image/jpeg\r\n\r\n").getBytes("UTF-8"));
+		body.write(image);
+		body.write(unique);
+		body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes("UTF-8"));
+		return send("POST", "/photo/upload", "multipart/form-data; boundary=" + BOUNDARY, body.toByteArray()) < 400;
+	}
+
+	/**
+	 * Show the first page of the gallery, remembering the photos on it
+	 */
+	public boolean gallery() throws IOException {
+		HttpURLConnection connection = open("GET", "/");
+		int status = connection.getResponseCode();
+		String page = new String(readFully(connection), "UTF-8");
+		Matcher matcher = PHOTO_LINK.matcher(page);
+		while (matcher.find()) {
+			String[] photo = {matcher.group(1), matcher.group(2)};
+			if (!contains(photo)) photos.add(photo);
+		}
+		return status < 400;
+	}
+
+	public boolean view() throws IOException {
+		String[] photo = anyPhoto();
+		return photo == null || send("GET", "/photo/viewPhoto?id=" + photo[0] + "&date=" + photo[1], null, null) < 400;
+	}
+
+	public boolean thumbnail() throws IOException {
+		String[] photo = anyPhoto();
+		return photo == null || send("GET", "/photo/raw?id=" + photo[0] + "&date=" + photo[1] + "&size=thumbnail", null, null) < 400;
+	}
+
+	public boolean comment() throws IOException {
+		String[] photo = anyPhoto();
+		if (photo == null) return true;
+		byte[] body = ("comment_body=" + URLEncoder.encode("A load test comment", "UTF-8")).getBytes("UTF-8");
+		return send("POST", "/comment/add?id=" + photo[0] + "&date=" + photo[1], "application/x-www-form-urlencoded", body) < 400;
+	}
+
+	private String[] anyPhoto() {
+		int size = photos.size();
+		return size == 0 ? null : photos.get(random.nextInt(size));
+	}
+
+	private boolean contains(String[] photo) {
+		for (String[] known : photos) {
+			if (known[0].equals(photo[0])) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the status of the response, whose body is read and dropped
+	 */
+	private int send(String method, String path, String contentType, byte[] body) throws IOException {
+		HttpURLConnection connection = open(method, path);
+		if (body != null) {
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", contentType);
+			connection.setFixedLengthStreamingMode(body.length);
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(body);
+			} finally {
+				out.close();
+			}
+		}
+		int status = connection.getResponseCode();
+		readFully(connection);
+		return status;
+	}
+
+	private HttpURLConnection open(String method, String path) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+		connection.setRequestMethod(method);
+		connection.setInstanceFollowRedirects(false);
+		connection.setConnectTimeout(10000);
+		connection.setReadTimeout(60000);
+		return connection;
+	}
+
+	/**
+	 * Read the whole response, so the connection is kept alive for reuse
+	 */
+	private static byte[] readFully(HttpURLConnection connection) throws IOException {
+		InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (in == null) return out.toByteArray();
+		try {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,84 @@
+package loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Latencies and errors of one kind of request. All samples are kept, which is
+ * fine for the length of a load test and gives exact percentiles.
+ *
+ */
+public class LatencyStats {
+
+	private final String name;
+	private long[] samples = new long[1024];
+	private int count;
+	private int errors;
+
+	public LatencyStats(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param micros the latency of a request, from when it was due to be sent
+	 * @param ok whether it succeeded
+	 */
+	public synchronized void record(long micros, boolean ok) {
+		if (!ok) {
+			errors++;
+			return;
+		}
+		if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+		samples[count++] = micros;
+	}
+
+	public synchronized void reset() {
+		count = 0;
+		errors = 0;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	public synchronized int getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the latency in microseconds under which the given share of requests completed
+	 */
+	public synchronized long percentile(double percentile) {
+		if (count == 0) return 0;
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	/**
+	 * @param seconds how long the requests were measured
+	 * @return a line of the report
+	 */
+	public synchronized String report(double seconds) {
+		return String.format("%-10s %8d %6d %9.1f %9.1f %9.1f %9.1f %9.1f",
+				name, count, errors, count / seconds,
+				percentile(50) / 1000.0, percentile(90) / 1000.0, percentile(99) / 1000.0, percentile(100) / 1000.0,
+				count == 0 ? 0.0 : mean() / 1000.0);
+	}
+
+	private double mean() {
+		long total = 0;
+		for (int i = 0; i < count; i++) total += samples[i];
+		return (double) total / count;
+	}
+
+	public static String header() {
+		return String.format("%-10s %8s %6s %9s %9s %9s %9s %9s",
+				"route", "ok", "errors", "req/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "mean ms");
+	}
+}
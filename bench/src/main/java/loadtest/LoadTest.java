@@ -0,0 +1,199 @@
+package loadtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+
+import play.test.Helpers;
+import play.test.TestServer;
+import utils.BenchmarkImages;
+
+/**
+ * End to end load test. Starts an HBase mini-cluster and the application
+ * against it, then sends a mix of requests at a fixed rate and reports the
+ * throughput and latency percentiles of every route.
+ *
+ * Requests are sent on schedule whether or not earlier ones have completed,
+ * and latencies are measured from when a request was due rather than sent,
+ * so a saturated server shows up as growing latencies and not as a lower rate.
+ *
+ * Options, all optional:
+ * <pre>
+ * --rate 50                 requests per second
+ * --duration 60             seconds measured
+ * --warmup 15               seconds sent but not measured
+ * --threads 128             most requests in flight
+ * --mix gallery=40,thumbnail=30,view=20,comment=8,upload=2
+ * --image 2048x1536         size of the uploaded photos
+ * --seed 20                 photos uploaded before the test
+ * --engine hbase            or memory, to measure without HBase
+ * --url http://host:9000    test a running application instead
+ * --port 3333
+ * </pre>
+ *
+ */
+public class LoadTest {
+
+	private static final String[] ROUTES = {"gallery", "thumbnail", "view", "comment", "upload"};
+
+	private final Map<String, String> options;
+	private final Map<String, LatencyStats> stats = new LinkedHashMap<String, LatencyStats>();
+	private final String[] schedule;
+	private AlbumClient client;
+
+	LoadTest(Map<String, String> options) {
+		this.options = options;
+		for (String route : ROUTES) stats.put(route, new LatencyStats(route));
+		this.schedule = schedule(option("mix", "gallery=40,thumbnail=30,view=20,comment=8,upload=2"));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("--")) throw new IllegalArgumentException("Unexpected argument " + args[i]);
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+		new LoadTest(options).run();
+		System.exit(0);
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	private int intOption(String name, int defaultValue) {
+		return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+	}
+
+	/**
+	 * @param mix weights of the routes as route=weight,...
+	 * @return a hundred routes in the proportions of the mix
+	 */
+	private static String[] schedule(String mix) {
+		Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+		int total = 0;
+		for (String part : mix.split(",")) {
+			String[] pair = part.split("=");
+			int weight = Integer.parseInt(pair[1].trim());
+			weights.put(pair[0].trim(), weight);
+			total += weight;
+		}
+
+		List<String> routes = new ArrayList<String>(100);
+		for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+			if (!Arrays.asList(ROUTES).contains(entry.getKey())) {
+				throw new IllegalArgumentException("Unknown route " + entry.getKey());
+			}
+			long slots = Math.round(100.0 * entry.getValue() / total);
+			for (int i = 0; i < slots; i++) routes.add(entry.getKey());
+		}
+		return routes.toArray(new String[routes.size()]);
+	}
+
+	void run() throws Exception {
+		HBaseTestingUtility hbase = null;
+		TestServer server = null;
+		String url = options.get("url");
+
+		try {
+			if (url == null) {
+				Map<String, String> config = new HashMap<String, String>();
+				String engine = option("engine", "hbase");
+				config.put("storage.engine", engine);
+				if ("hbase".equals(engine)) {
+					System.out.println("Starting HBase mini-cluster...");
+					hbase = new HBaseTestingUtility();
+					hbase.startMiniCluster();
+					config.put("storage.hbase.zookeeper.quorum", "localhost");
+					config.put("storage.hbase.zookeeper.clientPort", hbase.getConfiguration().get("hbase.zookeeper.property.clientPort"));
+				}
+
+				int port = intOption("port", 3333);
+				System.out.println("Starting the application on port " + port + "...");
+				server = Helpers.testServer(port, Helpers.fakeApplication(config));
+				Helpers.start(server);
+				url = "http://localhost:" + port;
+			}
+
+			client = new AlbumClient(url, BenchmarkImages.jpeg(option("image", "2048x1536")));
+			int seed = intOption("seed", 20);
+			System.out.println("Uploading " + seed + " photos...");
+			for (int i = 0; i < seed; i++) client.upload();
+			client.gallery();
+			System.out.println("Found " + client.getPhotoCount() + " photos");
+
+			int rate = intOption("rate", 50);
+			int duration = intOption("duration", 60);
+			ExecutorService workers = Executors.newFixedThreadPool(intOption("threads", 128));
+			try {
+				System.out.println("Warming up at " + rate + " requests per second...");
+				drive(workers, rate, intOption("warmup", 15));
+				for (LatencyStats s : stats.values()) s.reset();
+
+				System.out.println("Measuring for " + duration + " seconds...");
+				drive(workers, rate, duration);
+				workers.shutdown();
+				workers.awaitTermination(2, TimeUnit.MINUTES);
+			} finally {
+				workers.shutdownNow();
+			}
+
+			System.out.println();
+			System.out.println(LatencyStats.header());
+			for (LatencyStats s : stats.values()) {
+				if (s.getCount() + s.getErrors() > 0) System.out.println(s.report(duration));
+			}
+		} finally {
+			if (server != null) Helpers.stop(server);
+			if (hbase != null) hbase.shutdownMiniCluster();
+		}
+	}
+
+	/**
+	 * Send requests at the given rate for the given time
+	 */
+	private void drive(ExecutorService workers, int rate, int seconds) throws InterruptedException {
+		Random random = new Random();
+		long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+		long start = System.nanoTime();
+		long requests = (long) rate * seconds;
+
+		for (long i = 0; i < requests; i++) {
+			final long due = start + i * interval;
+			long wait = due - System.nanoTime();
+			if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+
+			final String route = schedule[random.nextInt(schedule.length)];
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					boolean ok;
+					try {
+						ok = call(route);
+					} catch (Exception e) {
+						ok = false;
+					}
+					stats.get(route).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due), ok);
+				}
+			});
+		}
+	}
+
+	private boolean call(String route) throws Exception {
+		if ("gallery".equals(route)) return client.gallery();
+		if ("thumbnail".equals(route)) return client.thumbnail();
+		if ("view".equals(route)) return client.view();
+		if ("comment".equals(route)) return client.comment();
+		return client.upload();
+	}
+}
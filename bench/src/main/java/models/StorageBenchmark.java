@@ -0,0 +1,108 @@
+package models;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import play.test.FakeApplication;
+import play.test.Helpers;
+import utils.Utils;
+
+/**
+ * Keys and reads of the HBase storage, against an HBase mini-cluster. The
+ * storage is configured through the settings of a fake application, as the
+ * application configures it. Photo contents are random bytes of the sizes of
+ * typical originals and derivatives.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StorageBenchmark {
+
+	@Param({"0", "16"})
+	public int saltBuckets;
+
+	@Param({"200000", "3000000"})
+	public int originalBytes;
+
+	private HBaseTestingUtility hbase;
+	private FakeApplication application;
+	private HBaseStorage storage;
+	private Photo photo;
+	private byte[] key;
+
+	@Setup
+	public void setUp() throws Exception {
+		hbase = new HBaseTestingUtility();
+		hbase.startMiniCluster();
+		Map<String, String> config = new HashMap<String, String>();
+		config.put("storage.hbase.zookeeper.quorum", "localhost");
+		config.put("storage.hbase.zookeeper.clientPort", hbase.getConfiguration().get("hbase.zookeeper.property.clientPort"));
+		config.put("storage.photos.saltBuckets", Integer.toString(saltBuckets));
+		application = Helpers.fakeApplication(config);
+		Helpers.start(application);
+		storage = new HBaseStorage();
+
+		Random random = new Random(originalBytes);
+		byte[] original = new byte[originalBytes];
+		random.nextBytes(original);
+		photo = new Photo("A photo", original, Utils.md5(original), System.currentTimeMillis());
+		byte[] thumbnail = new byte[20 << 10];
+		random.nextBytes(thumbnail);
+		photo.setContents(Photo.Size.THUMBNAIL, thumbnail);
+		byte[] medium = new byte[200 << 10];
+		random.nextBytes(medium);
+		photo.setContents(Photo.Size.MEDIUM, medium);
+
+		storage.store(photo);
+		key = storage.getPhotoKey(photo.getImageHash(), photo.getDate());
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		try {
+			storage.close();
+			Helpers.stop(application);
+		} finally {
+			hbase.shutdownMiniCluster();
+		}
+	}
+
+	@Benchmark
+	public byte[] photoKey() {
+		return storage.getPhotoKey(photo.getImageHash(), photo.getDate());
+	}
+
+	@Benchmark
+	public byte[] commentKey() {
+		return storage.getCommentKey(photo.getImageHash(), photo.getDate());
+	}
+
+	@Benchmark
+	public Photo getPhoto() throws Exception {
+		return storage.getPhoto(key);
+	}
+
+	@Benchmark
+	public byte[] getThumbnail() throws Exception {
+		return storage.getPhotoContents(key, Photo.Size.THUMBNAIL);
+	}
+
+	@Benchmark
+	public String contentsBase64() {
+		return photo.getContentsBase64();
+	}
+}
@@ -0,0 +1,61 @@
+package utils;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Synthetic photos for the benchmarks. Gradients with shapes and noise compress
+ * about as well as camera pictures, unlike flat or random images.
+ *
+ */
+public class BenchmarkImages {
+
+	private BenchmarkImages() {
+	}
+
+	/**
+	 * @param dimensions the size as WIDTHxHEIGHT
+	 * @return a photo-like image of the given size
+	 */
+	public static BufferedImage photo(String dimensions) {
+		String[] parts = dimensions.split("x");
+		return photo(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+	}
+
+	/**
+	 * @param width
+	 * @param height
+	 * @return a photo-like image of the given size
+	 */
+	public static BufferedImage photo(int width, int height) {
+		Random random = new Random(width * 31L + height);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int r = (x * 255 / width + random.nextInt(24)) & 0xff;
+				int g = (y * 255 / height + random.nextInt(24)) & 0xff;
+				int b = ((x + y) * 127 / (width + height) + random.nextInt(24)) & 0xff;
+				image.setRGB(x, y, (r << 16) | (g << 8) | b);
+			}
+		}
+		Graphics2D g = image.createGraphics();
+		for (int i = 0; i < 40; i++) {
+			g.setColor(new Color(random.nextInt(0xffffff)));
+			g.fillOval(random.nextInt(width), random.nextInt(height), width / 8, height / 8);
+		}
+		g.dispose();
+		return image;
+	}
+
+	/**
+	 * @param dimensions the size as WIDTHxHEIGHT
+	 * @return a JPEG of a photo-like image of the given size
+	 * @throws IOException
+	 */
+	public static byte[] jpeg(String dimensions) throws IOException {
+		return Utils.toJpeg(photo(dimensions));
+	}
+}
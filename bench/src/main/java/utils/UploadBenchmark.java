@@ -0,0 +1,89 @@
+package utils;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import models.Photo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The upload path of the application: hashing, decoding and producing the
+ * derivatives of a photo, for uploads of typical sizes.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UploadBenchmark {
+
+	@Param({"640x480", "2048x1536", "4000x3000"})
+	public String dimensions;
+
+	private File file;
+	private byte[] jpeg;
+	private BufferedImage decoded;
+
+	@Setup
+	public void setUp() throws IOException {
+		jpeg = BenchmarkImages.jpeg(dimensions);
+		file = File.createTempFile("upload", ".jpg");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(jpeg);
+		} finally {
+			out.close();
+		}
+		decoded = ImageUpload.read(file).decode();
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public String md5() throws Exception {
+		return Utils.md5(jpeg);
+	}
+
+	@Benchmark
+	public ImageUpload read() throws IOException {
+		return ImageUpload.read(file);
+	}
+
+	@Benchmark
+	public BufferedImage decode() throws IOException {
+		return ImageUpload.read(file).decode();
+	}
+
+	@Benchmark
+	public byte[] thumbnail() throws IOException {
+		return Utils.toJpeg(Utils.scaleToFit(decoded, Photo.Size.THUMBNAIL.getMaxDimension()));
+	}
+
+	@Benchmark
+	public byte[] medium() throws IOException {
+		return Utils.toJpeg(Utils.scaleToFit(decoded, Photo.Size.MEDIUM.getMaxDimension()));
+	}
+
+	/**
+	 * Everything the upload action does before storing the photo, but the
+	 * duplicate lookups
+	 */
+	@Benchmark
+	public Photo transcode() throws IOException {
+		return ImageUpload.transcode(file, "title", 0L);
+	}
+}
@@ -17,11 +17,38 @@ object ApplicationBuild extends Build {
     "org.apache.commons" % "commons-lang3" % "3.1",
     "commons-lang" % "commons-lang" % "2.5",
     "org.apache.hadoop" % "hadoop-core" % "1.2.1",
-    "org.apache.hbase" % "hbase" % "0.94.4"
+    "org.apache.hbase" % "hbase" % "0.94.5",
+    // The *ClusterTest classes run against an HBase mini-cluster
+    "org.apache.hbase" % "hbase" % "0.94.5" % "test" classifier "tests",
+    "org.apache.hadoop" % "hadoop-test" % "1.2.1" % "test"
   )
 
   val main = play.Project(appName, appVersion, appDependencies).settings(
     // Add your own project settings here      
+    // Tests needing an HBase mini-cluster are slow and need a local Hadoop
+    // setup, they only run with
+    //   sbt -DclusterTests=true "test-only *ClusterTest"
+    testOptions in Test += Tests.Filter(name => !name.endsWith("ClusterTest") || sys.props.contains("clusterTests"))
+  )
+
+  val jmhVersion = "1.0"
+
+  // Microbenchmarks of the upload and storage hot paths, run with
+  //   sbt "bench/run -i 5 -wi 5 -f 1"
+  // and the end to end load test, run with
+  //   sbt "bench/run-main loadtest.LoadTest --rate 50 --duration 60"
+  // JMH generates the benchmark harness from the annotations at compile time
+  val bench = Project("bench", file("bench")).dependsOn(main).settings(
+    libraryDependencies ++= Seq(
+      "org.openjdk.jmh" % "jmh-core" % jmhVersion,
+      "org.openjdk.jmh" % "jmh-generator-annprocess" % jmhVersion,
+      // The load test runs the application against an HBase mini-cluster
+      "play" %% "play-test" % play.core.PlayVersion.current,
+      "org.apache.hbase" % "hbase" % "0.94.5" classifier "tests",
+      "org.apache.hadoop" % "hadoop-test" % "1.2.1"
+    ),
+    mainClass in (Compile, run) := Some("org.openjdk.jmh.Main"),
+    fork in run := true
   )
 
 }
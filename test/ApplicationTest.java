@@ -3,6 +3,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import models.PhotoPage;
+
 import org.codehaus.jackson.JsonNode;
 import org.junit.*;
 
@@ -35,7 +37,7 @@ public class ApplicationTest {
     
     @Test
     public void renderTemplate() {
-        Content html = views.html.index.render();
+        Content html = views.html.index.render(PhotoPage.EMPTY);
         assertThat(contentType(html)).isEqualTo("text/html");
         assertThat(contentAsString(html)).contains("Your new application is ready.");
     }
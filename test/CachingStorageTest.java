@@ -0,0 +1,41 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.*;
+
+import models.CachingStorage;
+import models.MemoryStorage;
+import models.Photo;
+
+import static org.fest.assertions.Assertions.*;
+
+public class CachingStorageTest {
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void cachesContentsOpenedFromTheStorage() throws Exception {
+        // Stored before the cache was there, as by an earlier run
+        MemoryStorage memory = new MemoryStorage(null);
+        Photo photo = new Photo("stored", "original".getBytes(), 1L);
+        photo.setContents(Photo.Size.THUMBNAIL, "thumbnail".getBytes());
+        memory.store(photo);
+        byte[] key = memory.getPhotoKey(photo.getImageHash(), photo.getDate());
+
+        CachingStorage storage = new CachingStorage(memory, 1 << 20, null);
+        assertThat(readAll(storage.openPhotoContents(key, Photo.Size.THUMBNAIL))).isEqualTo("thumbnail");
+        assertThat(readAll(storage.openPhotoContents(key, Photo.Size.ORIGINAL))).isEqualTo("original");
+        assertThat(storage.getCache().getSize()).isEqualTo(2);
+
+        assertThat(readAll(storage.openPhotoContents(key, Photo.Size.THUMBNAIL))).isEqualTo("thumbnail");
+        assertThat(storage.getCache().getHits()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.*;
+
+import utils.DiskBlobCache;
+
+import static org.fest.assertions.Assertions.*;
+
+public class DiskBlobCacheTest {
+
+    private static File createDirectory() throws Exception {
+        File directory = File.createTempFile("blobs", "");
+        directory.delete();
+        return directory;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+
+    private static String read(ByteBuffer blob) {
+        byte[] bytes = new byte[blob.remaining()];
+        blob.get(bytes);
+        return new String(bytes);
+    }
+
+    @Test
+    public void reopensWithTheCachedBlobs() throws Exception {
+        File directory = createDirectory();
+        try {
+            DiskBlobCache cache = new DiskBlobCache(directory, 1 << 20, 4096);
+            cache.put("a".getBytes(), "first".getBytes());
+            cache.put("b".getBytes(), "second".getBytes());
+            cache.close();
+
+            DiskBlobCache reopened = new DiskBlobCache(directory, 1 << 20, 4096);
+            assertThat(reopened.getSize()).isEqualTo(2);
+            assertThat(read(reopened.get("b".getBytes()))).isEqualTo("second");
+            assertThat(reopened.get("c".getBytes())).isNull();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void dropsRecordsWithACorruptKey() throws Exception {
+        File directory = createDirectory();
+        try {
+            DiskBlobCache cache = new DiskBlobCache(directory, 1 << 20, 4096);
+            cache.put("a".getBytes(), "first".getBytes());
+            cache.close();
+
+            // The key follows the 20 byte header of the first record
+            RandomAccessFile segment = new RandomAccessFile(new File(directory, "segment-00000000.dat"), "rw");
+            segment.seek(20);
+            segment.write('z');
+            segment.close();
+
+            DiskBlobCache reopened = new DiskBlobCache(directory, 1 << 20, 4096);
+            assertThat(reopened.get("z".getBytes())).isNull();
+            assertThat(reopened.getSize()).isEqualTo(0);
+        } finally {
+            delete(directory);
+        }
+    }
+}
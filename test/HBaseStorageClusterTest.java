@@ -0,0 +1,70 @@
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.junit.*;
+
+import models.HBaseStorage;
+import models.Photo;
+import play.test.FakeApplication;
+import play.test.Helpers;
+import utils.Utils;
+
+import static org.fest.assertions.Assertions.*;
+
+/**
+ * Runs against an HBase mini-cluster, so it is left out of sbt test, see
+ * project/Build.scala
+ */
+public class HBaseStorageClusterTest {
+
+    @Test
+    public void releasesBulkLoadedPhotosWhoseRowsWereNotLoaded() throws Exception {
+        HBaseTestingUtility hbase = new HBaseTestingUtility();
+        hbase.startMiniCluster();
+        try {
+            Map<String, String> config = new HashMap<String, String>();
+            config.put("storage.hbase.zookeeper.quorum", "localhost");
+            config.put("storage.hbase.zookeeper.clientPort", hbase.getConfiguration().get("hbase.zookeeper.property.clientPort"));
+            // Chunk the original, so its chunks are written before the row is loaded
+            config.put("storage.photos.inlineMaxBytes", "16");
+            config.put("storage.photos.chunkBytes", "8");
+            FakeApplication application = Helpers.fakeApplication(config);
+            Helpers.start(application);
+            HBaseStorage storage = new HBaseStorage();
+            try {
+                byte[] original = "the original of a bulk loaded photo".getBytes();
+                Photo photo = new Photo("Bulk loaded lake", original, Utils.md5(original), 1000L);
+                assertThat(storage.prepareBulkLoad(photo)).isNotNull();
+                assertThat(storage.prepareBulkLoad(photo)).isNull();
+
+                // The job failed, the hash is free again and nothing is indexed
+                assertThat(storage.finishBulkLoad(photo)).isFalse();
+                assertThat(storage.findPhoto(photo.getImageHash())).isNull();
+                assertThat(storage.search("lake", null, 10).getPhotos()).isEmpty();
+
+                Put row = storage.prepareBulkLoad(photo);
+                assertThat(row).isNotNull();
+                HTable table = new HTable(hbase.getConfiguration(), HBaseStorage.getPhotoTableName());
+                try {
+                    table.put(row);
+                } finally {
+                    table.close();
+                }
+
+                assertThat(storage.finishBulkLoad(photo)).isTrue();
+                byte[] key = storage.findPhoto(photo.getImageHash());
+                assertThat(key).isNotNull();
+                assertThat(storage.getPhoto(key).getContents()).isEqualTo(original);
+                assertThat(storage.search("lake", null, 10).getPhotos()).hasSize(1);
+            } finally {
+                storage.close();
+                Helpers.stop(application);
+            }
+        } finally {
+            hbase.shutdownMiniCluster();
+        }
+    }
+}
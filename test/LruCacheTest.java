@@ -0,0 +1,34 @@
+import org.junit.*;
+
+import utils.LruCache;
+
+import static org.fest.assertions.Assertions.*;
+
+public class LruCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsedByWeight() {
+        LruCache<String, String> cache = new LruCache<String, String>(100);
+        cache.put("a", "a", 20);
+        cache.put("b", "b", 20);
+        cache.put("c", "c", 20);
+        cache.get("a");
+        cache.put("d", "d", 25);
+        cache.put("e", "e", 25);
+
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.get("a")).isEqualTo("a");
+        assertThat(cache.getWeight()).isLessThanOrEqualTo(100);
+        assertThat(cache.getEvictions()).isEqualTo(1);
+    }
+
+    @Test
+    public void rejectsOversizedEntries() {
+        LruCache<String, String> cache = new LruCache<String, String>(100);
+        cache.put("small", "small", 10);
+        cache.put("big", "big", 60);
+
+        assertThat(cache.get("big")).isNull();
+        assertThat(cache.get("small")).isEqualTo("small");
+    }
+}
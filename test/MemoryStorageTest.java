@@ -0,0 +1,204 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.*;
+
+import models.Comment;
+import models.MemoryStorage;
+import models.Photo;
+import models.PhotoInfo;
+import models.PhotoPage;
+import models.TimelineBucket;
+
+import static org.fest.assertions.Assertions.*;
+
+public class MemoryStorageTest {
+
+    private static Photo photo(String title, long date) {
+        return new Photo(title, title.getBytes(), date);
+    }
+
+    @Test
+    public void listsNewestFirstAcrossPages() throws Exception {
+        MemoryStorage storage = new MemoryStorage(null);
+        for (int i = 0; i < 5; i++) storage.store(photo("photo" + i, 1000L + i));
+
+        PhotoPage first = storage.listPhotos(null, 3);
+        assertThat(first.getPhotos()).hasSize(3);
+        assertThat(first.getPhotos().get(0).getTitle()).isEqualTo("photo4");
+        assertThat(first.hasNext()).isTrue();
+
+        PhotoPage second = storage.listPhotos(first.getNextCursor(), 3);
+        assertThat(second.getPhotos()).hasSize(2);
+        assertThat(second.getPhotos().get(1).getTitle()).isEqualTo("photo0");
+        assertThat(second.hasNext()).isFalse();
+    }
+
+    @Test
+    public void readsPhotoInfoWithoutContents() throws Exception {
+        MemoryStorage storage = new MemoryStorage(null);
+        Photo p = photo("described", 7L);
+        storage.store(p);
+
+        PhotoInfo info = storage.getPhotoInfo(storage.getPhotoKey(p.getImageHash(), p.getDate()));
+        assertThat(info.getTitle()).isEqualTo("described");
+        assertThat(info.getDate()).isEqualTo(7L);
+        assertThat(storage.getPhotoInfo(storage.getPhotoKey(p.getImageHash(), 8L))).isNull();
+    }
+
+    @Test
+    public void deduplicatesByHash() throws Exception {
+        MemoryStorage storage = new MemoryStorage(null);
+        assertThat(storage.store(photo("same", 1L))).isTrue();
+        assertThat(storage.store(photo("same", 2L))).isFalse();
+        assertThat(storage.findPhoto(photo("same", 3L).getImageHash())).isNotNull();
+    }
+
+    @Test
+    public void countsCommentsPerPhoto() throws Exception {
+        MemoryStorage storage = new MemoryStorage(null);
+        Photo a = photo("a", 1L);
+        Photo b = photo("b", 2L);
+        storage.store(a);
+        storage.store(b);
+        storage.store(new Comment("one", a, 10L));
+        storage.store(new Comment("two", a, 11L));
+        // A retry of the same comment is not written nor counted again
+        assertThat(storage.store(new Comment("two", a, 11L))).isFalse();
+
+        long[] counts = storage.getCommentCounts(Arrays.asList(
+                storage.getPhotoKey(a.getImageHash(), a.getDate()),
+                storage.getPhotoKey(b.getImageHash(), b.getDate())));
+        assertThat(counts[0]).isEqualTo(2);
+        assertThat(counts[1]).isEqualTo(0);
+    }
+
+    @Test
+    public void readsCommentsOfSeveralPhotos() throws Exception {
+        MemoryStorage storage = new MemoryStorage(null);
+        Photo a = photo("a", 1L);
+        Photo b = photo("b", 2L);
+        storage.store(a);
+        storage.store(b);
+        storage.store(new Comment("old", a, 10L));
+        storage.store(new Comment("new", a, 11L));
+
+        Map<byte[], List<Comment>> comments = storage.getComments(Arrays.asList(a, b));
+        List<Comment> ofA = comments.get(storage.getPhotoKey(a.getImageHash(), a.getDate()));
+        assertThat(ofA).hasSize(2);
+        assertThat(ofA.get(0).getContents()).isEqualTo("new");
+        assertThat(ofA.get(0).getParent() == a).isTrue();
+        assertThat(comments.get(storage.getPhotoKey(b.getImageHash(), b.getDate()))).isEmpty();
+    }
+
+    @Test
+    public void findsNearDuplicatesByPerceptualHash() throws Exception {
+        MemoryStorage storage = new MemoryStorage(null);
+        Photo stored = photo("stored", 1L);
+        stored.setPerceptualHash(0x0123456789abcdefL);
+        storage.store(stored);
+        Photo other = photo("other", 2L);
+        other.setPerceptualHash(~0x0123456789abcdefL);
+        storage.store(other);
+
+        // Three bits off, all in the same chunk
+        List<byte[]> similar = storage.findSimilar(0x0123456789abcdefL ^ 0x7L, 4);
+        assertThat(similar).hasSize(1);
+        assertThat(storage.getPhoto(similar.get(0)).getTitle()).isEqualTo("stored");
+        assertThat(storage.findSimilar(0x0123456789abcdefL ^ 0x7L, 2)).isEmpty();
+    }
+
+    @Test
+    public void searchesTitlesAndComments() throws Exception {
+        MemoryStorage storage = new MemoryStorage(null);
+        Photo beach = photo("Beach at sunset", 1L);
+        Photo mountain = photo("Mountain lake", 2L);
+        storage.store(beach);
+        storage.store(mountain);
+        storage.store(new Comment("What a sunset over the lake", mountain, 3L));
+
+        // The title weighs more than the comment
+        PhotoPage sunset = storage.search("Sunset", null, 10);
+        assertThat(sunset.getPhotos()).hasSize(2);
+        assertThat(sunset.getPhotos().get(0).getTitle()).isEqualTo("Beach at sunset");
+
+        assertThat(storage.search("sunset lake", null, 10).getPhotos()).hasSize(1);
+        assertThat(storage.search("mount*", null, 10).getPhotos()).hasSize(1);
+        assertThat(storage.search("the", null, 10).getPhotos()).isEmpty();
+
+        PhotoPage first = storage.search("sunset", null, 1);
+        assertThat(first.hasNext()).isTrue();
+        PhotoPage second = storage.search("sunset", first.getNextCursor(), 1);
+        assertThat(second.getPhotos().get(0).getTitle()).isEqualTo("Mountain lake");
+        assertThat(second.hasNext()).isFalse();
+
+        IllegalArgumentException malformed = null;
+        try {
+            storage.search("sunset", "abc", 1);
+        } catch (IllegalArgumentException e) {
+            malformed = e;
+        }
+        assertThat(malformed).isNotNull();
+        assertThat(malformed.getMessage()).contains("Malformed cursor");
+    }
+
+    @Test
+    public void listsDateRangesAndTimeline() throws Exception {
+        long day = 24 * 3600 * 1000L;
+        long january = 1388534400000L; // 2014-01-01 UTC
+        long february = january + 31 * day;
+        MemoryStorage storage = new MemoryStorage(null);
+        storage.store(photo("jan1", january));
+        storage.store(photo("jan2", january + 1));
+        storage.store(photo("jan15", january + 14 * day));
+        storage.store(photo("feb", february + 1000));
+
+        PhotoPage first = storage.listPhotos(january, february, null, 2);
+        assertThat(first.getPhotos()).hasSize(2);
+        assertThat(first.getPhotos().get(0).getTitle()).isEqualTo("jan15");
+        PhotoPage second = storage.listPhotos(january, february, first.getNextCursor(), 2);
+        assertThat(second.getPhotos()).hasSize(1);
+        assertThat(second.getPhotos().get(0).getTitle()).isEqualTo("jan1");
+        assertThat(second.hasNext()).isFalse();
+
+        List<TimelineBucket> months = storage.getTimeline(null, null, TimelineBucket.Period.MONTH);
+        assertThat(months).hasSize(2);
+        assertThat(months.get(0).getLabel()).isEqualTo("2014-02");
+        assertThat(months.get(1).getCount()).isEqualTo(3);
+        assertThat(months.get(1).getEnd()).isEqualTo(february);
+
+        List<TimelineBucket> days = storage.getTimeline(january, february, TimelineBucket.Period.DAY);
+        assertThat(days).hasSize(2);
+        assertThat(days.get(1).getLabel()).isEqualTo("2014-01-01");
+        assertThat(days.get(1).getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void restoresFromSnapshot() throws Exception {
+        File file = File.createTempFile("storage", ".snapshot");
+        file.delete();
+        try {
+            MemoryStorage storage = new MemoryStorage(file);
+            Photo p = photo("kept", 42L);
+            p.setContents(Photo.Size.THUMBNAIL, "thumbnail".getBytes());
+            storage.store(p);
+            storage.store(new Comment("nice", p, 43L));
+            storage.close();
+
+            MemoryStorage restored = new MemoryStorage(file);
+            byte[] key = restored.getPhotoKey(p.getImageHash(), p.getDate());
+            assertThat(restored.getPhoto(key).getTitle()).isEqualTo("kept");
+            assertThat(new String(restored.getPhotoContents(key, Photo.Size.THUMBNAIL))).isEqualTo("thumbnail");
+            assertThat(new String(restored.getPhotoContents(key, Photo.Size.ORIGINAL))).isEqualTo("kept");
+            List<Comment> comments = new ArrayList<Comment>();
+            for (Comment c : restored.getComments(p)) comments.add(c);
+            assertThat(comments).hasSize(1);
+            assertThat(comments.get(0).getContents()).isEqualTo("nice");
+        } finally {
+            file.delete();
+        }
+    }
+}
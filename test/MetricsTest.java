@@ -0,0 +1,40 @@
+import org.junit.*;
+
+import utils.Metrics;
+
+import static org.fest.assertions.Assertions.*;
+
+public class MetricsTest {
+
+    @Test
+    public void rendersTimersAsHistograms() {
+        Metrics.Timer timer = Metrics.timer("test_seconds", "kind", "a");
+        timer.update(1000);
+        timer.update(100000000L);
+
+        String text = Metrics.render();
+        assertThat(text).contains("# TYPE test_seconds histogram");
+        assertThat(text).contains("test_seconds_bucket{kind=\"a\",le=\"+Inf\"} 2");
+        assertThat(text).contains("test_seconds_count{kind=\"a\"} 2");
+    }
+
+    @Test
+    public void sharesMetricsByNameAndLabels() {
+        Metrics.counter("test_total", "kind", "b").inc();
+        Metrics.counter("test_total", "kind", "b").add(2);
+
+        assertThat(Metrics.counter("test_total", "kind", "b").get()).isEqualTo(3);
+        assertThat(Metrics.render()).contains("test_total{kind=\"b\"} 3");
+    }
+
+    @Test
+    public void rendersCountersReadOnRenderingAsCounters() {
+        Metrics.counter(new Metrics.Gauge() {
+            public double value() { return 5; }
+        }, "test_read_total", "kind", "c");
+
+        String text = Metrics.render();
+        assertThat(text).contains("# TYPE test_read_total counter");
+        assertThat(text).contains("test_read_total{kind=\"c\"} 5");
+    }
+}
@@ -0,0 +1,37 @@
+import java.awt.image.BufferedImage;
+
+import org.junit.*;
+
+import utils.PerceptualHash;
+
+import static org.fest.assertions.Assertions.*;
+
+public class PerceptualHashTest {
+
+    private static BufferedImage shading(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int level = (int) (128 + 100 * Math.sin(5.0 * x / width) * Math.cos(3.0 * y / height));
+                image.setRGB(x, y, level * 0x010101);
+            }
+        }
+        return image;
+    }
+
+    @Test
+    public void resizedCopiesHashClose() {
+        long original = PerceptualHash.of(shading(640, 480));
+        long resized = PerceptualHash.of(shading(320, 240));
+        assertThat(PerceptualHash.distance(original, resized)).isLessThanOrEqualTo(4);
+    }
+
+    @Test
+    public void probesEveryChunkWithinRadius() {
+        assertThat(PerceptualHash.chunksWithin(0, 0)).hasSize(1);
+        assertThat(PerceptualHash.chunksWithin(0, 1)).hasSize(17);
+        assertThat(PerceptualHash.chunksWithin(0, 2)).hasSize(137);
+        assertThat(PerceptualHash.probeRadius(4)).isEqualTo(1);
+        assertThat(PerceptualHash.chunk(0xabcd000000000000L, 3)).isEqualTo(0xabcd);
+    }
+}
@@ -0,0 +1,32 @@
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.*;
+
+import models.Comment;
+import utils.SentimentLexicon;
+
+import static org.fest.assertions.Assertions.*;
+
+public class SentimentLexiconTest {
+
+    private static SentimentLexicon lexicon() {
+        Map<String, Integer> scores = new HashMap<String, Integer>();
+        scores.put("great", 3);
+        scores.put("blurry", -2);
+        return new SentimentLexicon(scores);
+    }
+
+    @Test
+    public void addsUpWordScores() {
+        assertThat(lexicon().score("Great shot, a bit blurry")).isEqualTo(1);
+        assertThat(lexicon().classify("GREAT!")).isEqualTo(Comment.Sentiment.POSITIVE);
+        assertThat(lexicon().classify("nothing to say")).isEqualTo(Comment.Sentiment.NEUTRAL);
+    }
+
+    @Test
+    public void negationFlipsFollowingWords() {
+        assertThat(lexicon().classify("not that great")).isEqualTo(Comment.Sentiment.NEGATIVE);
+        assertThat(lexicon().classify("isn't blurry at all")).isEqualTo(Comment.Sentiment.POSITIVE);
+    }
+}
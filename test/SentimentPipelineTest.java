@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.*;
+
+import models.Comment;
+import models.MemoryStorage;
+import models.Photo;
+import models.SentimentPipeline;
+import models.SentimentSummary;
+import utils.Metrics;
+import utils.SentimentLexicon;
+
+import static org.fest.assertions.Assertions.*;
+
+public class SentimentPipelineTest {
+
+    /**
+     * Records the size of the batches written and holds the first one until released
+     */
+    private static class BlockingStorage extends MemoryStorage {
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch firstBatch = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        BlockingStorage() throws IOException {
+            super(null);
+        }
+
+        @Override
+        public void storeSentiments(List<Comment> scored) throws IOException {
+            firstBatch.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            batches.add(scored.size());
+            super.storeSentiments(scored);
+        }
+    }
+
+    private static SentimentLexicon lexicon() {
+        Map<String, Integer> scores = new HashMap<String, Integer>();
+        scores.put("great", 3);
+        return new SentimentLexicon(scores);
+    }
+
+    private static Comment comment(MemoryStorage storage, Photo photo, long date) throws IOException {
+        Comment comment = new Comment("great", photo, date);
+        storage.store(comment);
+        return comment;
+    }
+
+    private static long dropped() {
+        return Metrics.counter("sentiment_comments_total", "outcome", "dropped").get();
+    }
+
+    @Test
+    public void scoresQueuedCommentsInBatches() throws Exception {
+        BlockingStorage storage = new BlockingStorage();
+        Photo photo = new Photo("photo", "photo".getBytes(), 1L);
+        storage.store(photo);
+        SentimentPipeline pipeline = new SentimentPipeline(storage, lexicon(), 2, 3, 100);
+        try {
+            // The writer holds the first comment while the others queue up
+            assertThat(pipeline.submit(comment(storage, photo, 10L))).isTrue();
+            storage.firstBatch.await();
+            for (int i = 0; i < 5; i++) assertThat(pipeline.submit(comment(storage, photo, 11L + i))).isTrue();
+        } finally {
+            storage.release.countDown();
+            pipeline.close();
+        }
+
+        assertThat(storage.batches).isEqualTo(Arrays.asList(1, 3, 2));
+        assertThat(storage.getSentiment(storage.getPhotoKey(photo.getImageHash(), photo.getDate())).getPositive()).isEqualTo(6);
+    }
+
+    @Test
+    public void dropsCommentsWhenFullAndScoresQueuedOnClose() throws Exception {
+        BlockingStorage storage = new BlockingStorage();
+        Photo photo = new Photo("photo", "photo".getBytes(), 1L);
+        storage.store(photo);
+        SentimentPipeline pipeline = new SentimentPipeline(storage, lexicon(), 1, 10, 2);
+        long droppedBefore = dropped();
+        try {
+            assertThat(pipeline.submit(comment(storage, photo, 10L))).isTrue();
+            storage.firstBatch.await();
+            assertThat(pipeline.submit(comment(storage, photo, 11L))).isTrue();
+            assertThat(pipeline.submit(comment(storage, photo, 12L))).isTrue();
+            assertThat(pipeline.submit(comment(storage, photo, 13L))).isFalse();
+            assertThat(dropped() - droppedBefore).isEqualTo(1);
+        } finally {
+            storage.release.countDown();
+            pipeline.close();
+        }
+
+        // The two comments queued when closing are scored too
+        SentimentSummary summary = storage.getSentiment(storage.getPhotoKey(photo.getImageHash(), photo.getDate()));
+        assertThat(summary.getPositive()).isEqualTo(3);
+        assertThat(pipeline.submit(comment(storage, photo, 14L))).isFalse();
+        assertThat(dropped() - droppedBefore).isEqualTo(2);
+    }
+}